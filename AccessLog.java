@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log. Workers put entries into a bounded lock-free ring buffer and a single
+ * background thread formats them and writes them in batches to a size-rotated file.
+ * When the ring is full the entry is dropped and counted, a worker never waits on the log.
+ */
+public class AccessLog {
+
+    public enum Level { OFF, INFO, DEBUG }
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+
+    private static class Entry {
+        final long timestamp;
+        final String method;
+        final String path;
+        final int status;
+        final long bytes;
+        final long latencyMicros;
+        final String message;
+
+        Entry(String method, String path, int status, long bytes, long latencyMicros, String message) {
+            this.timestamp = System.currentTimeMillis();
+            this.method = method;
+            this.path = path;
+            this.status = status;
+            this.bytes = bytes;
+            this.latencyMicros = latencyMicros;
+            this.message = message;
+        }
+    }
+
+    private final Level level;
+    private final double sampleRate;
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    // Bounded multi-producer ring (Vyukov style): a slot is free for position p when its sequence is p,
+    // and holds an entry for the consumer when its sequence is p + 1
+    private final Entry[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong producerPosition = new AtomicLong();
+    private long consumerPosition;
+    private volatile long writtenPosition;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;
+    private OutputStream output;
+    private long fileSize;
+
+    public AccessLog(Level level, double sampleRate, String file, int bufferSize, long maxFileSize, int maxFiles) {
+        this.level = level;
+        this.sampleRate = sampleRate;
+        this.file = Paths.get(file);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.slots = new Entry[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+
+        if (level != Level.OFF) {
+            Thread writer = new Thread(this::writeLoop, "access-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown access log level " + value + ", using INFO.");
+            return Level.INFO;
+        }
+    }
+
+    public boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    /**
+     * Records one served request. Server errors are always kept, other requests are sampled.
+     */
+    public void log(String method, String path, int status, long bytes, long latencyNanos) {
+        if (level == Level.OFF) {
+            return;
+        }
+        if (status < 500 && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        offer(new Entry(method, path, status, bytes, latencyNanos / 1000, null));
+    }
+
+    // Free-form diagnostics such as full request dumps, only kept at DEBUG level
+    public void debug(String message) {
+        if (level == Level.DEBUG) {
+            offer(new Entry("debug", null, 0, 0, 0, message));
+        }
+    }
+
+    // Problems with a single connection, such as a response that could not be sent, kept unless the log is off
+    public void warn(String message) {
+        if (level != Level.OFF) {
+            offer(new Entry("warn", null, 0, 0, 0, message));
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits up to timeoutMillis for the writer to write out everything queued so far.
+     */
+    public void flush(long timeoutMillis) {
+        if (level == Level.OFF) {
+            return;
+        }
+        long target = producerPosition.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (writtenPosition < target && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private void offer(Entry entry) {
+        long position = producerPosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (producerPosition.compareAndSet(position, position + 1)) {
+                    slots[index] = entry;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = producerPosition.get();
+            } else if (difference < 0) {
+                // Ring is full, the writer is behind
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = producerPosition.get();
+            }
+        }
+    }
+
+    private Entry poll() {
+        int index = (int) (consumerPosition & mask);
+        if (sequences.get(index) != consumerPosition + 1) {
+            return null;
+        }
+        Entry entry = slots[index];
+        slots[index] = null;
+        sequences.set(index, consumerPosition + slots.length);
+        consumerPosition++;
+        return entry;
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 96);
+        while (true) {
+            int count = 0;
+            Entry entry;
+            while (count < BATCH_SIZE && (entry = poll()) != null) {
+                format(entry, batch);
+                count++;
+            }
+            long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                batch.append(Instant.now()).append(" dropped=").append(droppedNow - reportedDropped).append('\n');
+                reportedDropped = droppedNow;
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+            }
+            writtenPosition = consumerPosition;
+            if (count < BATCH_SIZE) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void format(Entry entry, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(entry.timestamp));
+        if (entry.message != null) {
+            // Messages carry their level in place of a method
+            line.append(' ').append(entry.method).append(' ').append(entry.message).append('\n');
+            return;
+        }
+        line.append(" method=").append(entry.method)
+                .append(" path=").append(entry.path)
+                .append(" status=").append(entry.status)
+                .append(" bytes=").append(entry.bytes)
+                .append(" latency_us=").append(entry.latencyMicros)
+                .append('\n');
+    }
+
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (output == null || fileSize + bytes.length > maxFileSize) {
+                rotate();
+            }
+            output.write(bytes);
+            fileSize += bytes.length;
+        } catch (IOException e) {
+            System.err.println("Error writing access log: " + e.getMessage());
+            output = null;
+        }
+    }
+
+    // access.log becomes access.log.1, access.log.1 becomes access.log.2, and so on up to maxFiles
+    private void rotate() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = Paths.get(file + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(file);
+            }
+        }
+        output = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+}
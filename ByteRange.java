@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One satisfiable range of a Range: bytes=... request header.
+ */
+public class ByteRange {
+
+    private static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long length;
+
+    public ByteRange(long start, long length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getEnd() {
+        return start + length - 1;
+    }
+
+    public String contentRange(long size) {
+        return "bytes " + start + "-" + getEnd() + "/" + size;
+    }
+
+    /**
+     * Parses a Range header against a representation of size bytes.
+     * Returns null when the header should be ignored (malformed, not in bytes, or too many ranges)
+     * and an empty list when none of the ranges can be satisfied.
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix > 0 && size > 0) {
+                        long length = Math.min(suffix, size);
+                        ranges.add(new ByteRange(size - length, length));
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (!last.isEmpty() && Long.parseLong(last) < start) {
+                    return null;
+                }
+                if (start < size) {
+                    ranges.add(new ByteRange(start, end - start + 1));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * Incremental decoder for a Transfer-Encoding: chunked request body.
+ * Bytes are fed as they arrive, in pieces of any size, and decode returns how many it consumed,
+ * so the bytes of a following pipelined request are left in the caller's buffer.
+ * Chunk extensions and trailers are skipped. Bodies over maxBodySize and size or trailer lines
+ * over MAX_LINE_LENGTH fail the decoder.
+ */
+public class ChunkedBodyDecoder {
+
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int INITIAL_BODY_SIZE = 1024;
+
+    private enum State { SIZE, EXTENSION, DATA, DATA_END, TRAILER, DONE, FAILED }
+
+    private final int maxBodySize;
+    private State state = State.SIZE;
+    private byte[] body = new byte[INITIAL_BODY_SIZE];
+    private int length;
+    private long chunkRemaining;
+    private int sizeDigits;
+    private int lineLength;
+    private boolean trailerContent;
+    private boolean tooLarge;
+
+    public ChunkedBodyDecoder(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Decodes data[offset..offset+count) and returns the number of bytes consumed.
+     * Stops early once the body is complete or malformed.
+     */
+    public int decode(byte[] data, int offset, int count) {
+        int position = offset;
+        int end = offset + count;
+        while (position < end && state != State.DONE && state != State.FAILED) {
+            if (state == State.DATA) {
+                int take = (int) Math.min(chunkRemaining, end - position);
+                append(data, position, take);
+                position += take;
+                chunkRemaining -= take;
+                if (chunkRemaining == 0) {
+                    state = State.DATA_END;
+                }
+                continue;
+            }
+
+            byte b = data[position++];
+            if (++lineLength > MAX_LINE_LENGTH) {
+                state = State.FAILED;
+                break;
+            }
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        chunkRemaining = chunkRemaining * 16 + digit;
+                        sizeDigits++;
+                        if (length + chunkRemaining > maxBodySize) {
+                            tooLarge = true;
+                            state = State.FAILED;
+                        }
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = State.EXTENSION;
+                    } else if (b == '\n') {
+                        endSizeLine();
+                    } else if (b != '\r') {
+                        state = State.FAILED;
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == '\n') {
+                        endSizeLine();
+                    }
+                    break;
+                case DATA_END:
+                    // The CRLF that closes the chunk data
+                    if (b == '\n') {
+                        state = State.SIZE;
+                        lineLength = 0;
+                        sizeDigits = 0;
+                    } else if (b != '\r') {
+                        state = State.FAILED;
+                    }
+                    break;
+                case TRAILER:
+                    if (b == '\n') {
+                        // An empty line ends the trailers and the body
+                        state = trailerContent ? State.TRAILER : State.DONE;
+                        trailerContent = false;
+                        lineLength = 0;
+                    } else if (b != '\r') {
+                        trailerContent = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return position - offset;
+    }
+
+    private void endSizeLine() {
+        lineLength = 0;
+        if (sizeDigits == 0) {
+            state = State.FAILED;
+        } else if (chunkRemaining == 0) {
+            state = State.TRAILER;
+        } else {
+            state = State.DATA;
+        }
+    }
+
+    private void append(byte[] data, int offset, int count) {
+        if (length + count > body.length) {
+            body = Arrays.copyOf(body, Math.max(length + count, Math.min(body.length * 2, maxBodySize)));
+        }
+        System.arraycopy(data, offset, body, length, count);
+        length += count;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    public boolean isFailed() {
+        return state == State.FAILED;
+    }
+
+    // Whether it failed because the body went over maxBodySize rather than on malformed framing
+    public boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Response body sink for Transfer-Encoding: chunked. Written bytes collect in one reusable buffer
+ * that has room for the hex size line in front and the closing CRLF behind the data, so every chunk
+ * goes out framed in a single write. close writes the last chunk but leaves the connection open.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+    // Up to 8 hex digits and CRLF in front of the data
+    private static final int HEADER_ROOM = 10;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[HEADER_ROOM + CHUNK_SIZE + 2];
+    private int count;
+    private long written;
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    // Makes the stream usable for the next response on the same connection
+    public void reset() {
+        count = 0;
+        written = 0;
+        finished = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == CHUNK_SIZE) {
+            writeChunk();
+        }
+        buffer[HEADER_ROOM + count++] = (byte) b;
+        written++;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == CHUNK_SIZE) {
+                writeChunk();
+            }
+            int take = Math.min(length, CHUNK_SIZE - count);
+            System.arraycopy(data, offset, buffer, HEADER_ROOM + count, take);
+            count += take;
+            written += take;
+            offset += take;
+            length -= take;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        writeChunk();
+        out.write(LAST_CHUNK);
+        out.flush();
+    }
+
+    // Body bytes written so far, without the chunk framing
+    public long getWritten() {
+        return written;
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int start = HEADER_ROOM - 2;
+        buffer[start] = '\r';
+        buffer[start + 1] = '\n';
+        for (int size = count; size > 0; size >>>= 4) {
+            buffer[--start] = HEX_DIGITS[size & 0xF];
+        }
+        int end = HEADER_ROOM + count;
+        buffer[end] = '\r';
+        buffer[end + 1] = '\n';
+        out.write(buffer, start, end + 2 - start);
+        count = 0;
+    }
+}
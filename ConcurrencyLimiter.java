@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps how many requests are served at once, shedding the rest with a 503 instead of letting them queue.
+ * In adaptive mode the cap follows observed latency with AIMD: while requests finish within
+ * latencyTarget and the cap is actually being used, it grows by about one per cap's worth of requests;
+ * a request slower than the target shrinks it by a tenth, at most once per latencyTarget so that one
+ * burst of slow requests counts once. A fixed limiter keeps its initial cap.
+ * Latency is the service time the caller reports, from when the request got its slot until its
+ * response started going out.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF = 0.9;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int currentLimit;
+    // Only touched under the lock
+    private double limit;
+    private long lastDecrease;
+
+    public ConcurrencyLimiter(boolean adaptive, int initialLimit, int minLimit, int maxLimit, long latencyTargetMillis) {
+        this.adaptive = adaptive;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTargetNanos = latencyTargetMillis * 1_000_000L;
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.currentLimit = (int) limit;
+        this.lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * A limiter that never sheds.
+     */
+    public static ConcurrencyLimiter unlimited() {
+        return new ConcurrencyLimiter(false, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Takes a slot for a request, or returns false when the cap is reached and the request should be shed.
+     * Every successful call must be paired with a release.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= currentLimit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(long serviceNanos) {
+        int current = inFlight.getAndDecrement();
+        if (!adaptive) {
+            return;
+        }
+        synchronized (this) {
+            if (serviceNanos > latencyTargetNanos) {
+                long now = System.nanoTime();
+                if (now - lastDecrease >= latencyTargetNanos) {
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (current * 2 >= limit) {
+                // Only grow while the cap is what bounds the load, an idle server keeps its limit
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            currentLimit = (int) limit;
+        }
+    }
+
+    public int getLimit() {
+        return currentLimit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding negotiation and compression of responses.
+ * Only the content types configured with a minimum size are compressed. Compressed variants of
+ * static files are kept, least recently used first, in a cache bounded by maxCachedBytes and
+ * keyed by path and encoding, so a file is compressed again only when its modification time changes.
+ */
+public class ContentEncoder {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static class Variant {
+        final byte[] content;
+        final long lastModified;
+
+        Variant(byte[] content, long lastModified) {
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // Content type -> smallest body worth compressing
+    private final Map<String, Long> minSizes;
+    private final int level;
+    private final long maxCachedBytes;
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ContentEncoder(Map<String, Long> minSizes, int level, long maxCachedBytes) {
+        this.minSizes = minSizes;
+        this.level = level;
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    /**
+     * Picks the encoding to use for an Accept-Encoding header, gzip first, or null for identity.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (quality <= 0) {
+                continue;
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = true;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = true;
+            } else if (coding.equals("*")) {
+                any = true;
+            }
+        }
+        if (gzip || any) {
+            return GZIP;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Whether responses of this content type may be compressed at all, so they need Vary: Accept-Encoding.
+     */
+    public boolean isCompressible(String contentType) {
+        return minSizes.containsKey(contentType);
+    }
+
+    public boolean shouldCompress(String contentType, long size) {
+        Long minSize = minSizes.get(contentType);
+        return minSize != null && size >= minSize;
+    }
+
+    /**
+     * Returns the compressed variant of a static file, compressing it only if the cached one is missing or stale.
+     */
+    public byte[] getCompressed(Path path, long lastModified, byte[] content, String encoding) throws IOException {
+        String key = path + "\n" + encoding;
+        synchronized (this) {
+            Variant variant = variants.get(key);
+            if (variant != null && variant.lastModified == lastModified) {
+                hits.incrementAndGet();
+                return variant.content;
+            }
+        }
+        misses.incrementAndGet();
+        byte[] compressed = compress(content, encoding);
+        if (compressed.length <= maxCachedBytes) {
+            put(key, new Variant(compressed, lastModified));
+        }
+        return compressed;
+    }
+
+    public byte[] compress(byte[] content, String encoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 3));
+        try (OutputStream stream = encode(out, encoding)) {
+            stream.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps out so everything written is compressed as it goes. Closing the returned stream
+     * finishes the compressed data and closes out.
+     */
+    public OutputStream encode(OutputStream out, String encoding) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out) { { def.setLevel(level); } };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    private synchronized void put(String key, Variant variant) {
+        Variant previous = variants.put(key, variant);
+        if (previous != null) {
+            cachedBytes -= previous.content.length;
+        }
+        cachedBytes += variant.content.length;
+
+        Iterator<Map.Entry<String, Variant>> eldest = variants.entrySet().iterator();
+        while (cachedBytes > maxCachedBytes && eldest.hasNext()) {
+            Map.Entry<String, Variant> evicted = eldest.next();
+            if (evicted.getValue() == variant) {
+                continue;
+            }
+            cachedBytes -= evicted.getValue().content.length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Makes the EmailStore survive restarts. Every add and delete is appended to a log file
+ * (emails-GENERATION.log), and once snapshotEvery records have been logged the live emails are
+ * written to emails.snapshot and the older logs are deleted. Startup loads the snapshot and
+ * replays only the logs written after it.
+ *
+ * The store is always updated before the record is logged and replay is idempotent by uuid,
+ * so a snapshot taken while requests keep coming in is still consistent with the newer log.
+ */
+public class EmailJournal {
+
+    public enum SyncPolicy { ALWAYS, BATCH, INTERVAL }
+
+    private static final byte ADD = 1;
+    private static final byte DELETE = 2;
+    private static final int SNAPSHOT_MAGIC = 0x454d4c53;
+    private static final String SNAPSHOT_FILE = "emails.snapshot";
+
+    private final Path directory;
+    private final EmailStore store;
+    private final SyncPolicy syncPolicy;
+    private final long snapshotEvery;
+    private final ScheduledExecutorService background;
+
+    // Guards the current log channel and the written sequence number
+    private final Object writeLock = new Object();
+    // Held while forcing the log to disk, appenders queued behind it share the next force
+    private final Object forceLock = new Object();
+    private FileChannel log;
+    private long generation;
+    private long writtenSequence;
+    private long durableSequence;
+    private long recordsSinceSnapshot;
+    private boolean snapshotScheduled;
+    // Set by close, later appends fail instead of writing to a closed log
+    private boolean closed;
+
+    private EmailJournal(Path directory, EmailStore store, SyncPolicy syncPolicy, long snapshotEvery) {
+        this.directory = directory;
+        this.store = store;
+        this.syncPolicy = syncPolicy;
+        this.snapshotEvery = snapshotEvery;
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the snapshot and the logs in directory into store and opens the log for appending.
+     */
+    public static EmailJournal open(Path directory, EmailStore store, SyncPolicy syncPolicy, long syncInterval, long snapshotEvery) throws IOException {
+        Files.createDirectories(directory);
+        EmailJournal journal = new EmailJournal(directory, store, syncPolicy, snapshotEvery);
+        journal.recover();
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            journal.background.scheduleWithFixedDelay(journal::forceQuietly, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        return journal;
+    }
+
+    public static SyncPolicy parseSyncPolicy(String value) {
+        try {
+            return SyncPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown fsync policy " + value + ", using BATCH.");
+            return SyncPolicy.BATCH;
+        }
+    }
+
+    public void appendAdd(EmailStore.Email email) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ADD);
+        writeEmail(out, email);
+        append(bytes.toByteArray());
+    }
+
+    public void appendDelete(String uuid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DELETE);
+        writeString(out, uuid);
+        append(bytes.toByteArray());
+    }
+
+    // Record layout: length, CRC32 of the payload, payload
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+
+        long sequence;
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException("Email journal is closed");
+            }
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            sequence = ++writtenSequence;
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                log.force(false);
+                durableSequence = sequence;
+            }
+            if (++recordsSinceSnapshot >= snapshotEvery && !snapshotScheduled) {
+                snapshotScheduled = true;
+                background.execute(this::snapshotQuietly);
+            }
+        }
+        if (syncPolicy == SyncPolicy.BATCH) {
+            awaitDurable(sequence);
+        }
+    }
+
+    // Group commit: whoever gets the force lock first forces everything written so far,
+    // the appenders that queued up meanwhile find their record already durable
+    private void awaitDurable(long sequence) throws IOException {
+        synchronized (forceLock) {
+            FileChannel channel;
+            long target;
+            synchronized (writeLock) {
+                // close forced everything written before it
+                if (durableSequence >= sequence || closed) {
+                    return;
+                }
+                channel = log;
+                target = writtenSequence;
+            }
+            channel.force(false);
+            synchronized (writeLock) {
+                durableSequence = Math.max(durableSequence, target);
+            }
+        }
+    }
+
+    private void forceQuietly() {
+        try {
+            force();
+        } catch (IOException e) {
+            System.err.println("Error syncing email log: " + e.getMessage());
+        }
+    }
+
+    public void force() throws IOException {
+        long sequence;
+        synchronized (writeLock) {
+            sequence = writtenSequence;
+        }
+        awaitDurable(sequence);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            System.err.println("Error writing email snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the live emails to a new snapshot and deletes the logs it makes redundant.
+     */
+    public void snapshot() throws IOException {
+        long snapshotGeneration;
+        synchronized (forceLock) {
+            synchronized (writeLock) {
+                if (closed) {
+                    return;
+                }
+                // Everything in the current log is already in the store, start a new log for what follows
+                log.force(false);
+                log.close();
+                durableSequence = writtenSequence;
+                generation++;
+                log = openLog(generation);
+                recordsSinceSnapshot = 0;
+                snapshotScheduled = false;
+                snapshotGeneration = generation;
+            }
+        }
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            List<EmailStore.Email> emails = new ArrayList<>();
+            store.snapshot().forEach(emails::add);
+            out.writeInt(emails.size());
+            for (EmailStore.Email email : emails) {
+                writeEmail(out, email);
+            }
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long older : logGenerations()) {
+            if (older < snapshotGeneration) {
+                Files.deleteIfExists(logPath(older));
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the log. An append still running finishes first, later ones throw.
+     */
+    public void close() throws IOException {
+        background.shutdown();
+        synchronized (forceLock) {
+            synchronized (writeLock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                log.force(false);
+                log.close();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        long firstGeneration = loadSnapshot();
+        List<Long> generations = logGenerations();
+        long replayed = 0;
+        for (long logGeneration : generations) {
+            if (logGeneration >= firstGeneration) {
+                replayed += replay(logPath(logGeneration));
+            }
+        }
+        generation = Math.max(firstGeneration, generations.isEmpty() ? 0 : generations.get(generations.size() - 1));
+        log = openLog(generation);
+        recordsSinceSnapshot = replayed;
+        System.out.println("Loaded " + store.size() + " emails (" + replayed + " log records replayed)");
+    }
+
+    // Returns the first log generation not covered by the snapshot
+    private long loadSnapshot() throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream file = Files.newInputStream(path)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(file, 64 * 1024), crc));
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not an email snapshot: " + path);
+            }
+            long snapshotGeneration = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                store.add(readEmail(in));
+            }
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupted email snapshot: " + path);
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    // Applies the records of one log, a torn record at the end (crash mid-write) is cut off
+    private long replay(Path path) throws IOException {
+        long records = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > 16 * 1024 * 1024) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                if (in.readNBytes(payload, 0, length) < length) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(payload);
+                records++;
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Torn length or checksum at the end of the log
+        }
+        if (validLength < Files.size(path)) {
+            System.err.println("Truncating torn record at the end of " + path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return records;
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if (type == ADD) {
+            store.add(readEmail(in));
+        } else if (type == DELETE) {
+            store.delete(readString(in));
+        }
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(logPath(logGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve("emails-" + logGeneration + ".log");
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "emails-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring("emails-".length(), name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unexpected file " + file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static void writeEmail(DataOutputStream out, EmailStore.Email email) throws IOException {
+        writeString(out, email.getUuid());
+        out.writeInt(email.getFieldCount());
+        for (int i = 0; i < email.getFieldCount(); i++) {
+            writeString(out, email.getFieldName(i));
+            writeString(out, email.getFieldValue(i));
+        }
+    }
+
+    private static EmailStore.Email readEmail(DataInputStream in) throws IOException {
+        String uuid = readString(in);
+        int fieldCount = in.readInt();
+        String[] fields = new String[fieldCount * 2];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = readString(in);
+        }
+        return new EmailStore.Email(uuid, fields);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe store for the emails posted to /params_info.html.
+ * Lookup and delete by uuid go through a concurrent hash index. Rendering iterates an
+ * insertion-ordered snapshot without taking any lock: entries are only ever appended to the
+ * backing array, deletes mark the entry, and the array is compacted once most of it is dead.
+ */
+public class EmailStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MIN_COMPACT_DEAD = 1024;
+
+    /**
+     * One email, its form fields kept as a flat name/value array in the order they were posted.
+     */
+    public static class Email {
+        private final String uuid;
+        private final String[] fields;
+        private volatile boolean deleted;
+
+        public Email(String uuid, String[] fields) {
+            this.uuid = uuid;
+            this.fields = fields;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public int getFieldCount() {
+            return fields.length / 2;
+        }
+
+        public String getFieldName(int i) {
+            return fields[i * 2];
+        }
+
+        public String getFieldValue(int i) {
+            return fields[i * 2 + 1];
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    /**
+     * Immutable view of the first size entries of the backing array at the time it was taken.
+     */
+    public static class Snapshot implements Iterable<Email> {
+        private final Email[] entries;
+        private final int size;
+
+        Snapshot(Email[] entries, int size) {
+            this.entries = entries;
+            this.size = size;
+        }
+
+        @Override
+        public Iterator<Email> iterator() {
+            return new Iterator<Email>() {
+                private int next = skipDeleted(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public Email next() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    Email email = entries[next];
+                    next = skipDeleted(next + 1);
+                    return email;
+                }
+            };
+        }
+
+        private int skipDeleted(int from) {
+            while (from < size && entries[from].isDeleted()) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public void forEach(Consumer<? super Email> action) {
+            for (int i = 0; i < size; i++) {
+                Email email = entries[i];
+                if (!email.isDeleted()) {
+                    action.accept(email);
+                }
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Email> index = new ConcurrentHashMap<>();
+    // Written under the store lock only, readers just read the volatile snapshot
+    private Email[] entries = new Email[INITIAL_CAPACITY];
+    private int size;
+    private int deadCount;
+    private volatile Snapshot snapshot = new Snapshot(entries, 0);
+
+    public static String[] toFields(Map<String, String> parameters) {
+        String[] fields = new String[parameters.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            fields[i++] = entry.getKey();
+            fields[i++] = entry.getValue();
+        }
+        return fields;
+    }
+
+    public void add(Email email) {
+        synchronized (this) {
+            if (index.putIfAbsent(email.getUuid(), email) != null) {
+                return;
+            }
+            if (size == entries.length) {
+                Email[] bigger = new Email[entries.length * 2];
+                System.arraycopy(entries, 0, bigger, 0, size);
+                entries = bigger;
+            }
+            entries[size++] = email;
+            snapshot = new Snapshot(entries, size);
+        }
+    }
+
+    public Email get(String uuid) {
+        return uuid == null ? null : index.get(uuid);
+    }
+
+    public boolean delete(String uuid) {
+        if (uuid == null) {
+            return false;
+        }
+        Email removed = index.remove(uuid);
+        if (removed == null) {
+            return false;
+        }
+        synchronized (this) {
+            removed.deleted = true;
+            deadCount++;
+            if (deadCount >= MIN_COMPACT_DEAD && deadCount > size / 2) {
+                compact();
+            }
+        }
+        return true;
+    }
+
+    // Copies the live entries into a fresh array, snapshots taken before keep the old one
+    private void compact() {
+        Email[] live = new Email[Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, size - deadCount)) * 2)];
+        int liveCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (!entries[i].isDeleted()) {
+                live[liveCount++] = entries[i];
+            }
+        }
+        entries = live;
+        size = liveCount;
+        deadCount = 0;
+        snapshot = new Snapshot(entries, size);
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return index.size();
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the style of HdrHistogram: values below 2048 are counted exactly, larger
+ * values in log-linear buckets of 1024 sub-buckets each, so every recorded value keeps about three
+ * significant digits from microseconds up to hours in a fixed 256 KB of counters.
+ * Safe to record into from any number of threads, a recording is one atomic increment of its bucket
+ * plus the count, sum and, rarely, the min and max.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKETS = 2048;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = 30;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAX_SHIFT * HALF);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        totalCount.increment();
+        sum.add(value);
+        if (value < min.get()) {
+            min.accumulateAndGet(value, Math::min);
+        }
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public void merge(Histogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.add(other.totalCount.sum());
+        sum.add(other.sum.sum());
+        min.accumulateAndGet(other.min.get(), Math::min);
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMin() {
+        return getTotalCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getTotalCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * The value at or below which percentile (0-100) of the recordings fall, to the histogram's precision.
+     * Recordings made while this runs may or may not be included.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getTotalCount();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * How many recordings were at or below value, counting the whole bucket value falls in.
+     */
+    public long getCountAtOrBelow(long value) {
+        if (value < 0) {
+            return 0;
+        }
+        int last = index(value);
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value down until it fits in [HALF, SUB_BUCKETS)
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - 10, MAX_SHIFT);
+        long subBucket = Math.min(value >>> shift, SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (subBucket - HALF);
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,495 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). A Decoder reads the header blocks of one
+ * connection's requests and an Encoder writes those of its responses; each keeps the dynamic table
+ * its peer mirrors, so blocks must be decoded and encoded in the order they cross the wire.
+ * Header strings are kept as ISO-8859-1 so their bytes go through unchanged.
+ */
+public class Hpack {
+
+    // The static table of RFC 7541 appendix A, index 1 first
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // The Huffman code of every octet, and of EOS at 256, from RFC 7541 appendix B
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int EOS = 256;
+    // The decoding tree: node n has its children at 2n and 2n+1, the root being node 1, and a negative
+    // entry is a leaf holding -(symbol + 1)
+    private static final int[] HUFFMAN_TREE;
+    // Full "name\0value" pairs and names alone to their lowest static index
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    // Every entry costs its name and value plus 32 bytes of bookkeeping in the table size
+    private static final int ENTRY_OVERHEAD = 32;
+
+    static {
+        int[] tree = new int[1024];
+        int nodes = 2;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 1;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = -(symbol + 1);
+                } else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        HUFFMAN_TREE = tree;
+
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    /**
+     * Decodes the request header blocks of one connection, into name and value pairs in the order sent.
+     * A block that can't be decoded fails the connection, the decoder's table is out of step after that.
+     */
+    public static class Decoder {
+        private final DynamicTable table;
+        // The table size the peer was told it may use, it can only pick something smaller
+        private final int maxTableSize;
+
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        public List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+            List<String[]> headers = new ArrayList<>();
+            Input in = new Input(block, offset, offset + length);
+            while (in.position < in.end) {
+                int first = in.data[in.position] & 0xff;
+                if ((first & 0x80) != 0) {
+                    headers.add(field(in.integer(7)));
+                } else if ((first & 0x40) != 0) {
+                    String[] field = literal(in, 6);
+                    table.add(field[0], field[1]);
+                    headers.add(field);
+                } else if ((first & 0x20) != 0) {
+                    // A table size update is only allowed before the first field of a block
+                    int size = in.integer(5);
+                    if (!headers.isEmpty() || size > maxTableSize) {
+                        throw new IOException("HPACK: unexpected table size update to " + size);
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    // Without indexing or never indexed, the same thing to a server
+                    headers.add(literal(in, 4));
+                }
+            }
+            return headers;
+        }
+
+        private String[] literal(Input in, int prefixBits) throws IOException {
+            int nameIndex = in.integer(prefixBits);
+            String name = nameIndex == 0 ? in.string() : field(nameIndex)[0];
+            return new String[] {name, in.string()};
+        }
+
+        private String[] field(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            String[] entry = table.get(index - STATIC_TABLE.length - 1);
+            if (entry == null) {
+                throw new IOException("HPACK: no table entry " + index);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Encodes response header blocks. Fields are looked up in both tables, anything new is added to
+     * the dynamic table except values that change with every response, and strings are Huffman coded
+     * whenever that makes them shorter.
+     */
+    public static class Encoder {
+        private final DynamicTable table;
+        private int pendingSizeUpdate = -1;
+        private int smallestSizeUpdate = Integer.MAX_VALUE;
+
+        public Encoder(int maxTableSize) {
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        // The peer's SETTINGS_HEADER_TABLE_SIZE, announced at the start of the next block
+        public void setMaxTableSize(int size) {
+            smallestSizeUpdate = Math.min(smallestSizeUpdate, size);
+            pendingSizeUpdate = size;
+        }
+
+        public byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            if (pendingSizeUpdate >= 0) {
+                // A shrink followed by a growth needs both, so the peer evicts what the shrink did
+                if (smallestSizeUpdate < pendingSizeUpdate) {
+                    integer(out, 0x20, 5, smallestSizeUpdate);
+                    table.setMaxSize(smallestSizeUpdate);
+                }
+                integer(out, 0x20, 5, pendingSizeUpdate);
+                table.setMaxSize(pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+                smallestSizeUpdate = Integer.MAX_VALUE;
+            }
+            for (String[] header : headers) {
+                encode(out, header[0], header[1]);
+            }
+            return out.toByteArray();
+        }
+
+        private void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer index = STATIC_FIELDS.get(name + '\0' + value);
+            if (index == null) {
+                int dynamic = table.indexOf(name, value);
+                index = dynamic < 0 ? null : STATIC_TABLE.length + 1 + dynamic;
+            }
+            if (index != null) {
+                integer(out, 0x80, 7, index);
+                return;
+            }
+            Integer nameIndex = STATIC_NAMES.get(name);
+            if (nameIndex == null) {
+                int dynamic = table.indexOfName(name);
+                nameIndex = dynamic < 0 ? 0 : STATIC_TABLE.length + 1 + dynamic;
+            }
+            boolean indexed = !name.equals("content-length") && !name.equals("content-range");
+            if (indexed) {
+                integer(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                integer(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                string(out, name);
+            }
+            string(out, value);
+        }
+    }
+
+    // A FIFO of fields, index 0 being the newest, bounded by the total size of its entries
+    private static class DynamicTable {
+        private String[][] entries = new String[16][];
+        private int newest;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            if (index < 0 || index >= count) {
+                return null;
+            }
+            return entries[(newest - index + entries.length) % entries.length];
+        }
+
+        int indexOf(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                String[] entry = get(i);
+                if (entry[0].equals(name) && entry[1].equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOfName(String name) {
+            for (int i = 0; i < count; i++) {
+                if (get(i)[0].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // An entry bigger than the whole table empties it and is not added
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return;
+            }
+            if (count == entries.length) {
+                String[][] bigger = new String[entries.length * 2][];
+                for (int i = 0; i < count; i++) {
+                    bigger[count - 1 - i] = get(i);
+                }
+                entries = bigger;
+                newest = count - 1;
+            }
+            newest = (newest + 1) % entries.length;
+            entries[newest] = new String[] {name, value};
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (count > 0 && size > targetSize) {
+                String[] oldest = get(count - 1);
+                entries[(newest - count + 1 + entries.length) % entries.length] = null;
+                size -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+                count--;
+            }
+        }
+    }
+
+    private static class Input {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Input(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        int integer(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = data[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position >= end || shift > 21) {
+                    throw new IOException("HPACK: bad integer");
+                }
+                int b = data[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String string() throws IOException {
+            if (position >= end) {
+                throw new IOException("HPACK: missing string");
+            }
+            boolean huffman = (data[position] & 0x80) != 0;
+            int length = integer(7);
+            if (length < 0 || length > end - position) {
+                throw new IOException("HPACK: string overruns the block");
+            }
+            String value = huffman ? huffmanDecode(data, position, length)
+                    : new String(data, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return value;
+        }
+    }
+
+    static String huffmanDecode(byte[] data, int offset, int length) throws IOException {
+        StringBuilder out = new StringBuilder(length * 8 / 5);
+        int node = 1;
+        // Bits read since the last symbol, the padding at the end must be under 8 bits of EOS, all ones
+        int bits = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (data[i] >> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + value];
+                bits++;
+                allOnes &= value == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new IOException("HPACK: EOS in a Huffman string");
+                    }
+                    out.append((char) symbol);
+                    node = 1;
+                    bits = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (bits > 7 || !allOnes) {
+            throw new IOException("HPACK: bad Huffman padding");
+        }
+        return out.toString();
+    }
+
+    private static void string(ByteArrayOutputStream out, String value) {
+        long huffmanBits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            huffmanBits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((huffmanBits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            integer(out, 0x00, 7, value.length());
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(bytes, 0, bytes.length);
+            return;
+        }
+        integer(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xff;
+            pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pendingBits += HUFFMAN_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+        }
+        if (pendingBits > 0) {
+            // Padded with the most significant bits of EOS
+            out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+        }
+    }
+
+    private static void integer(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
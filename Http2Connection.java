@@ -0,0 +1,1058 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The HTTP/2 side of one connection (RFC 9113), after the client preface. Frames are fed to receive by
+ * whichever thread reads the socket and frames go out through a Transport, so both engines share it.
+ * Every stream's request is handed to the executor once complete and served by the same RequestHandler
+ * as HTTP/1.1: its response is written as HTTP/1.1 and turned into HEADERS and DATA frames on the way
+ * out, so many requests share the connection and a slow one holds up only its own stream.
+ * Response bodies wait for the peer's flow control windows, request bodies are buffered whole like on
+ * HTTP/1.1 and their windows are reopened as they arrive. The server never pushes.
+ */
+public class Http2Connection {
+
+    public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Where the connection's frames are written. send is called with one frame or a header block at
+     * a time, in wire order, and must write or queue all of it before returning.
+     */
+    public interface Transport {
+        void send(ByteBuffer[] frames) throws IOException;
+
+        // Called by streams before they send more data, blocks while the engine has too much unsent
+        default void awaitWritable() throws IOException {
+        }
+    }
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    // The largest frame either side may send until told otherwise, the server never asks for more
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    // RST_STREAM frames a client may send per second, or twice its stream limit if that is more, before GOAWAY
+    private static final int MIN_RESETS_PER_SECOND = 100;
+    // Runs of stream ids a client skipped that are remembered, older ones are then taken as opened and closed
+    private static final int MAX_SKIPPED_RANGES = 64;
+    // Response head fields HTTP/2 does not allow, they only make sense for one HTTP/1.1 connection
+    private static final List<String> CONNECTION_HEADERS =
+            Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    private static final List<String> PSEUDO_HEADERS = Arrays.asList(":method", ":scheme", ":authority", ":path");
+
+    private final Transport transport;
+    private final Executor executor;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+    // Header blocks are encoded and written under writeLock, so the peer decodes them in the order they were encoded
+    private final Hpack.Encoder encoder = new Hpack.Encoder(HEADER_TABLE_SIZE);
+    private final Object writeLock = new Object();
+    // Open streams, and the send windows below, are guarded by this
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean closed;
+
+    // Only touched by the reading thread
+    private byte[] input = new byte[FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE];
+    private int inputLength;
+    private volatile int lastStreamId;
+    private boolean goingAway;
+    private long connectionReceiveWindow = DEFAULT_WINDOW_SIZE;
+    // RST_STREAM frames received in the current second
+    private long resetWindowStart;
+    private int resetCount;
+    // Ids below lastStreamId the client never opened, as {first, last} runs, oldest first
+    private final Deque<int[]> skippedStreamIds = new ArrayDeque<>();
+    // A header block spread over HEADERS and CONTINUATION frames, headerStreamId is 0 between blocks
+    private int headerStreamId;
+    private int headerFlags;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * A connection whose preface has been read, requests are served on executor. Call start before
+     * feeding it any frames.
+     */
+    public Http2Connection(Transport transport, Executor executor) {
+        this.transport = transport;
+        this.executor = executor;
+        this.maxConcurrentStreams = MultiThreadedWebServer.getHttp2MaxConcurrentStreams();
+        this.initialWindowSize = MultiThreadedWebServer.getHttp2InitialWindowSize();
+        this.maxHeaderSize = MultiThreadedWebServer.getMaxHeaderSize();
+        this.maxBodySize = MultiThreadedWebServer.getMaxBodySize();
+        MultiThreadedWebServer.getMetrics().http2Connection();
+    }
+
+    // One request and its response
+    private static class Stream {
+        private final int id;
+        private final List<String[]> headers;
+        private final int headerListSize;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // Guarded by the connection
+        private long sendWindow;
+        // Only touched by the reading thread
+        private long receiveWindow;
+        private boolean dispatched;
+        // Whether its handler is queued or running, the stream then stays counted until the handler is done
+        private boolean serving;
+        private int rejectStatus;
+        // Whether the client may still send DATA on it, and whether either side reset it
+        private volatile boolean receiving = true;
+        private volatile boolean reset;
+
+        Stream(int id, List<String[]> headers, int headerListSize) {
+            this.id = id;
+            this.headers = headers;
+            this.headerListSize = headerListSize;
+        }
+    }
+
+    // A connection or stream error, answered with GOAWAY or RST_STREAM carrying errorCode
+    private static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Sends the server's preface: its SETTINGS, and a WINDOW_UPDATE when the connection window is bigger
+     * than the default.
+     */
+    public void start() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(3 * 6);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxConcurrentStreams);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(initialWindowSize);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderSize);
+        writeFrame(SETTINGS, 0, 0, settings.array(), 0, settings.capacity());
+        if (initialWindowSize > DEFAULT_WINDOW_SIZE) {
+            windowUpdate(0, initialWindowSize - DEFAULT_WINDOW_SIZE);
+            connectionReceiveWindow = initialWindowSize;
+        }
+    }
+
+    /**
+     * Processes data[offset..offset+length) as it comes off the socket, frames may be split anywhere.
+     * Returns false when the connection is done: after a connection error, for which GOAWAY was sent, or
+     * when a frame could not be written.
+     */
+    public boolean receive(byte[] data, int offset, int length) {
+        if (inputLength + length > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + length));
+        }
+        System.arraycopy(data, offset, input, inputLength, length);
+        inputLength += length;
+        int position = 0;
+        try {
+            while (inputLength - position >= FRAME_HEADER_SIZE) {
+                int frameLength = ((input[position] & 0xff) << 16) | ((input[position + 1] & 0xff) << 8)
+                        | (input[position + 2] & 0xff);
+                if (frameLength > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + frameLength + " bytes");
+                }
+                if (inputLength - position < FRAME_HEADER_SIZE + frameLength) {
+                    break;
+                }
+                int type = input[position + 3] & 0xff;
+                int flags = input[position + 4] & 0xff;
+                int streamId = readInt(input, position + 5) & 0x7fffffff;
+                onFrame(type, flags, streamId, position + FRAME_HEADER_SIZE, frameLength);
+                position += FRAME_HEADER_SIZE + frameLength;
+            }
+        } catch (Http2Exception e) {
+            goAway(e.errorCode);
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+        System.arraycopy(input, position, input, 0, inputLength - position);
+        inputLength -= position;
+        return true;
+    }
+
+    private void onFrame(int type, int flags, int streamId, int offset, int length) throws IOException {
+        if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+        }
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, offset, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, offset, length);
+                break;
+            case PRIORITY:
+                // Streams are served as they come, priorities are only checked for form
+                if (streamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5) {
+                    resetStream(streamId, FRAME_SIZE_ERROR);
+                }
+                break;
+            case RST_STREAM:
+                onResetStream(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, offset, length);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream");
+                }
+                if (length != 8) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, Arrays.copyOfRange(input, offset, offset + 8), 0, 8);
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                // Streams already started are finished, the client opens no new ones and closes when done
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, offset, length);
+                break;
+            case CONTINUATION:
+                if (headerStreamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(offset, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+                break;
+            default:
+                // Unknown frame types are ignored
+                break;
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, int offset, int length) throws IOException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int end = offset + length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= length > 0 ? (input[offset++] & 0xff) : 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (end < offset) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS padding longer than the frame");
+        }
+        headerStreamId = streamId;
+        headerFlags = flags;
+        headerBlock.reset();
+        appendHeaderBlock(offset, end - offset);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private boolean wasSkipped(int streamId) {
+        for (int[] skipped : skippedStreamIds) {
+            if (streamId >= skipped[0] && streamId <= skipped[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendHeaderBlock(int offset, int length) throws IOException {
+        // The block has to be decoded whatever its size to keep the table in step, this bounds the work
+        if (headerBlock.size() + length > 2 * maxHeaderSize + DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        headerBlock.write(input, offset, length);
+    }
+
+    // A complete header block: a new request, or the trailers ending one whose body is arriving
+    private void onHeaderBlock() throws IOException {
+        int streamId = headerStreamId;
+        boolean endStream = (headerFlags & FLAG_END_STREAM) != 0;
+        headerStreamId = 0;
+        List<String[]> headers;
+        try {
+            headers = decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size());
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        if (streamId <= lastStreamId) {
+            if (wasSkipped(streamId)) {
+                // Streams can only be opened in increasing order, this one can't be opened any more
+                throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream " + streamId + ", which was never opened");
+            }
+            Stream stream = stream(streamId);
+            if (stream == null || stream.reset) {
+                // Reset or answered already: the block only mattered to the decoder, the stream is closed
+                resetStream(streamId, STREAM_CLOSED);
+                return;
+            }
+            if (!stream.receiving || !endStream) {
+                resetStream(streamId, stream.receiving ? PROTOCOL_ERROR : STREAM_CLOSED);
+                return;
+            }
+            // Trailers are dropped, the handlers have no use for them
+            stream.receiving = false;
+            if (!stream.dispatched) {
+                dispatch(stream);
+            }
+            return;
+        }
+        int nextStreamId = lastStreamId == 0 ? 1 : lastStreamId + 2;
+        if (streamId > nextStreamId) {
+            if (skippedStreamIds.size() == MAX_SKIPPED_RANGES) {
+                skippedStreamIds.removeFirst();
+            }
+            skippedStreamIds.addLast(new int[] {nextStreamId, streamId - 2});
+        }
+        lastStreamId = streamId;
+        MultiThreadedWebServer.getMetrics().http2Stream();
+
+        int headerListSize = 0;
+        for (String[] header : headers) {
+            headerListSize += header[0].length() + header[1].length() + 32;
+        }
+        Stream stream = new Stream(streamId, headers, headerListSize);
+        stream.receiveWindow = initialWindowSize;
+        synchronized (this) {
+            if (goingAway || streams.size() >= maxConcurrentStreams) {
+                stream = null;
+            } else {
+                stream.sendWindow = peerInitialWindowSize;
+                streams.put(streamId, stream);
+            }
+        }
+        if (stream == null) {
+            MultiThreadedWebServer.getMetrics().http2StreamRefused();
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (headerListSize > maxHeaderSize) {
+            // Answered with 431 right away, the body if any is dropped
+            stream.rejectStatus = 431;
+            dispatch(stream);
+        }
+        if (endStream) {
+            stream.receiving = false;
+            if (!stream.dispatched) {
+                dispatch(stream);
+            }
+        }
+    }
+
+    private void onData(int flags, int streamId, int offset, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // The whole frame counts against the windows, padding included
+        connectionReceiveWindow -= length;
+        if (connectionReceiveWindow < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+        }
+        if (connectionReceiveWindow <= initialWindowSize / 2) {
+            windowUpdate(0, initialWindowSize - connectionReceiveWindow);
+            connectionReceiveWindow = initialWindowSize;
+        }
+        int end = offset + length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= length > 0 ? (input[offset++] & 0xff) : 1;
+            if (end < offset) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA padding longer than the frame");
+            }
+        }
+
+        Stream stream = stream(streamId);
+        if (stream == null || !stream.receiving) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // A stream that was reset or answered already, frames in flight are expected
+            if (stream != null && !stream.reset) {
+                resetStream(streamId, STREAM_CLOSED);
+            }
+            return;
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        if (!stream.dispatched) {
+            if (stream.body.size() + (end - offset) > maxBodySize) {
+                stream.rejectStatus = 413;
+                dispatch(stream);
+            } else {
+                stream.body.write(input, offset, end - offset);
+            }
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.receiving = false;
+            if (!stream.dispatched) {
+                dispatch(stream);
+            }
+        } else if (stream.receiveWindow <= initialWindowSize / 2) {
+            windowUpdate(streamId, initialWindowSize - stream.receiveWindow);
+            stream.receiveWindow = initialWindowSize;
+        }
+    }
+
+    private void onResetStream(int streamId, int length) throws IOException {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream " + streamId);
+        }
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        // Opening streams and resetting them right away costs the client nothing and the handlers plenty
+        long now = System.currentTimeMillis();
+        if (now - resetWindowStart >= 1000) {
+            resetWindowStart = now;
+            resetCount = 0;
+        }
+        if (++resetCount > Math.max(MIN_RESETS_PER_SECOND, 2 * maxConcurrentStreams)) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many streams reset");
+        }
+        markReset(streamId);
+    }
+
+    private void onSettings(int flags, int streamId, int offset, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        for (int i = offset; i < offset + length; i += 6) {
+            int id = ((input[i] & 0xff) << 8) | (input[i + 1] & 0xff);
+            long value = readInt(input, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, HEADER_TABLE_SIZE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "ENABLE_PUSH of " + value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE of " + value);
+                    }
+                    // Changes the window of every open stream by the difference
+                    synchronized (this) {
+                        long delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = (int) value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "MAX_FRAME_SIZE of " + value);
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS limits pushes, which are never sent, MAX_HEADER_LIST_SIZE is advisory
+                    break;
+            }
+        }
+        writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+
+    private void onWindowUpdate(int streamId, int offset, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(input, offset) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            synchronized (this) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                notifyAll();
+            }
+            return;
+        }
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+        }
+        int error = NO_ERROR;
+        synchronized (this) {
+            Stream stream = streams.get(streamId);
+            if (stream == null || stream.reset) {
+                return;
+            }
+            stream.sendWindow += increment;
+            if (increment == 0) {
+                error = PROTOCOL_ERROR;
+            } else if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                error = FLOW_CONTROL_ERROR;
+            }
+            notifyAll();
+        }
+        if (error != NO_ERROR) {
+            resetStream(streamId, error);
+        }
+    }
+
+    private synchronized Stream stream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    // Hands a complete request to the executor, a stream the executor refuses is reset for the client to retry
+    private void dispatch(Stream stream) throws IOException {
+        stream.dispatched = true;
+        HttpRequest request = stream.rejectStatus != 0 ? HttpRequest.rejected(stream.rejectStatus) : toRequest(stream);
+        if (request == null) {
+            resetStream(stream.id, PROTOCOL_ERROR);
+            return;
+        }
+        request.setReceivedAt(System.nanoTime());
+        synchronized (this) {
+            stream.serving = true;
+        }
+        try {
+            executor.execute(() -> serve(stream, request));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                stream.serving = false;
+            }
+            MultiThreadedWebServer.getMetrics().http2StreamRefused();
+            resetStream(stream.id, REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * The request as the HTTP/1.1 message it stands for: the pseudo-headers become the request line
+     * and Host, cookies are joined back into one header and Content-Length is that of the body received.
+     * Returns null for a malformed request.
+     */
+    private HttpRequest toRequest(Stream stream) {
+        Map<String, String> pseudoHeaders = new HashMap<>();
+        StringBuilder fields = new StringBuilder(stream.headerListSize);
+        StringBuilder cookies = null;
+        boolean regular = false;
+        for (String[] header : stream.headers) {
+            String name = header[0];
+            String value = header[1];
+            if (name.isEmpty() || !isFieldText(name, true) || !isFieldText(value, false)) {
+                return null;
+            }
+            if (name.charAt(0) == ':') {
+                // Request pseudo-headers come first, each at most once
+                if (regular || !PSEUDO_HEADERS.contains(name) || pseudoHeaders.put(name, value) != null) {
+                    return null;
+                }
+                continue;
+            }
+            regular = true;
+            if (CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+                return null;
+            }
+            if (name.equals("cookie")) {
+                cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+            } else if (!name.equals("content-length") && !(name.equals("host") && pseudoHeaders.containsKey(":authority"))) {
+                fields.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+        String method = pseudoHeaders.get(":method");
+        String path = pseudoHeaders.get(":path");
+        String authority = pseudoHeaders.get(":authority");
+        if (method == null || path == null || path.isEmpty() || !pseudoHeaders.containsKey(":scheme")) {
+            return null;
+        }
+        StringBuilder head = new StringBuilder(fields.length() + path.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (authority != null) {
+            head.append("host: ").append(authority).append("\r\n");
+        }
+        head.append(fields);
+        if (cookies != null) {
+            head.append("cookie: ").append(cookies).append("\r\n");
+        }
+        if (stream.body.size() > 0) {
+            head.append("content-length: ").append(stream.body.size()).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequest request = new HttpRequest(bytes, bytes.length);
+        if (stream.body.size() > 0) {
+            request.setBody(stream.body.toByteArray(), 0, stream.body.size());
+        }
+        return request;
+    }
+
+    // No line breaks or NULs anywhere, and names are lowercase tokens (pseudo-headers aside)
+    private static boolean isFieldText(String text, boolean name) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0 || (name && (c <= ' ' || (c >= 'A' && c <= 'Z') || (c == ':' && i > 0)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs on the executor: the handler writes an HTTP/1.1 response which the stream's output turns into frames
+    private void serve(Stream stream, HttpRequest request) {
+        StreamOutput output = new StreamOutput(stream, "HEAD".equals(request.getMethod()));
+        boolean failed = false;
+        try {
+            new RequestHandler(output).serve(request, true);
+            output.finish();
+        } catch (IOException e) {
+            // Reset by the client, or the connection is gone
+            failed = true;
+        } finally {
+            boolean stillReceiving;
+            synchronized (this) {
+                streams.remove(stream.id);
+                stillReceiving = stream.receiving;
+                notifyAll();
+            }
+            if (!stream.reset && (failed || stillReceiving)) {
+                // The response is complete but the client is still sending, or the response broke off
+                try {
+                    resetStream(stream.id, failed ? INTERNAL_ERROR : NO_ERROR);
+                } catch (IOException e) {
+                    // The connection is gone
+                }
+            }
+        }
+    }
+
+    /**
+     * Translates the HTTP/1.1 response a handler writes: the head becomes a HEADERS frame once it is
+     * complete, the body (unchunked if need be) DATA frames as it is written. Everything written is
+     * copied, so callers may reuse their buffers.
+     */
+    private class StreamOutput implements GatheringByteChannel, RequestHandler.FileRegionWriter {
+        private final Stream stream;
+        private final boolean headRequest;
+        private ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        private boolean ended;
+        // Body bytes still expected, -1 when the head gave no Content-Length
+        private long remaining = -1;
+        private boolean chunked;
+        // The chunked decoding state: reading a size line (and whether its digits are over), or chunk data
+        private boolean inSizeLine = true;
+        private boolean sizeComplete;
+        private long chunkSize;
+        private long chunkRemaining;
+        private int skipLineEnd;
+
+        StreamOutput(Stream stream, boolean headRequest) {
+            this.stream = stream;
+            this.headRequest = headRequest;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            byte[] data = new byte[length];
+            source.get(data);
+            write(data, 0, length);
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(sources[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) throws IOException {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !stream.reset;
+        }
+
+        // The stream is ended by finish once the handler returns, not by the handler
+        @Override
+        public void close() {
+        }
+
+        // Files are read in frame-sized pieces, a DATA frame can't be sent from the file itself
+        @Override
+        public void writeFile(Path filePath, long position, long count) throws IOException {
+            try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                long end = position + count;
+                while (position < end) {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(peerMaxFrameSize, end - position));
+                    int read = file.read(buffer, position);
+                    if (read <= 0) {
+                        throw new IOException("File shrank while sending: " + filePath);
+                    }
+                    position += read;
+                    write(buffer.array(), 0, read);
+                }
+            }
+        }
+
+        private void write(byte[] data, int offset, int length) throws IOException {
+            if (head != null) {
+                int headEnd = headEnd(data, offset, length);
+                if (headEnd < 0) {
+                    head.write(data, offset, length);
+                    return;
+                }
+                head.write(data, offset, headEnd - offset);
+                length -= headEnd - offset;
+                offset = headEnd;
+                sendHead(new String(head.toByteArray(), StandardCharsets.ISO_8859_1));
+                head = null;
+            }
+            if (!ended && length > 0) {
+                if (chunked) {
+                    unchunk(data, offset, length);
+                } else if (remaining >= 0) {
+                    int count = (int) Math.min(length, remaining);
+                    remaining -= count;
+                    sendData(stream, data, offset, count, remaining == 0);
+                    ended = remaining == 0;
+                } else {
+                    sendData(stream, data, offset, length, false);
+                }
+            }
+        }
+
+        // The index just past the empty line ending the head, looking back into what was buffered already
+        private int headEnd(byte[] data, int offset, int length) {
+            byte[] buffered = head.toByteArray();
+            for (int i = offset; i < offset + length; i++) {
+                if (data[i] == '\n' && byteAt(buffered, data, offset, i - 1) == '\r'
+                        && byteAt(buffered, data, offset, i - 2) == '\n' && byteAt(buffered, data, offset, i - 3) == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private int byteAt(byte[] buffered, byte[] data, int offset, int index) {
+            if (index >= offset) {
+                return data[index];
+            }
+            int back = buffered.length - (offset - index);
+            return back >= 0 ? buffered[back] : -1;
+        }
+
+        private void sendHead(String text) throws IOException {
+            String[] lines = text.split("\r\n");
+            int status = Integer.parseInt(lines[0].substring(9, 12));
+            List<String[]> fields = new ArrayList<>(lines.length);
+            fields.add(new String[] {":status", lines[0].substring(9, 12)});
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("transfer-encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equals("content-length")) {
+                    remaining = Long.parseLong(value);
+                }
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    fields.add(new String[] {name, value});
+                }
+            }
+            ended = headRequest || status == 304 || status == 204 || (remaining == 0 && !chunked);
+            sendHeaders(stream, fields, ended);
+        }
+
+        // Strips the chunk framing the handler wrote, the chunk data goes out as DATA
+        private void unchunk(byte[] data, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end && !ended) {
+                if (skipLineEnd > 0) {
+                    // The CRLF after a chunk's data
+                    offset++;
+                    skipLineEnd--;
+                } else if (inSizeLine) {
+                    byte b = data[offset++];
+                    int digit = Character.digit(b, 16);
+                    if (b == '\n') {
+                        inSizeLine = false;
+                        chunkRemaining = chunkSize;
+                        if (chunkSize == 0) {
+                            // The last chunk, trailers are never written
+                            sendData(stream, data, offset, 0, true);
+                            ended = true;
+                        }
+                        chunkSize = 0;
+                        sizeComplete = false;
+                    } else if (digit >= 0 && !sizeComplete) {
+                        chunkSize = chunkSize * 16 + digit;
+                    } else {
+                        // The CR, or an extension after the size
+                        sizeComplete = true;
+                    }
+                } else {
+                    int count = (int) Math.min(chunkRemaining, end - offset);
+                    sendData(stream, data, offset, count, false);
+                    offset += count;
+                    chunkRemaining -= count;
+                    if (chunkRemaining == 0) {
+                        inSizeLine = true;
+                        skipLineEnd = 2;
+                    }
+                }
+            }
+        }
+
+        // Ends the stream if the response did not, a handler that wrote nothing at all resets it
+        void finish() throws IOException {
+            if (head != null) {
+                throw new IOException("No response written");
+            }
+            if (!ended) {
+                ended = true;
+                sendData(stream, new byte[0], 0, 0, true);
+            }
+        }
+    }
+
+    private void sendHeaders(Stream stream, List<String[]> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            if (stream.reset) {
+                throw new IOException("Stream reset");
+            }
+            byte[] block = encoder.encode(fields);
+            int frameSize = peerMaxFrameSize;
+            int frames = Math.max(1, (block.length + frameSize - 1) / frameSize);
+            ByteBuffer[] buffers = new ByteBuffer[frames * 2];
+            for (int i = 0; i < frames; i++) {
+                int offset = i * frameSize;
+                int length = Math.min(frameSize, block.length - offset);
+                int flags = (i == frames - 1 ? FLAG_END_HEADERS : 0) | (i == 0 && endStream ? FLAG_END_STREAM : 0);
+                buffers[2 * i] = frameHeader(length, i == 0 ? HEADERS : CONTINUATION, flags, stream.id);
+                buffers[2 * i + 1] = ByteBuffer.wrap(block, offset, length);
+            }
+            send(buffers);
+        }
+    }
+
+    /**
+     * Sends data[offset..offset+length) as DATA frames, waiting for the stream and connection windows to
+     * allow each one. The array must not be changed afterwards, the transport may still be queuing it.
+     */
+    private void sendData(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        do {
+            transport.awaitWritable();
+            int count;
+            synchronized (this) {
+                while (true) {
+                    if (stream.reset || closed) {
+                        throw new IOException("Stream reset");
+                    }
+                    count = (int) Math.min(Math.min(length, peerMaxFrameSize),
+                            Math.min(stream.sendWindow, connectionSendWindow));
+                    if (count > 0 || length == 0) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a flow control window");
+                    }
+                }
+                stream.sendWindow -= count;
+                connectionSendWindow -= count;
+            }
+            boolean last = endStream && count == length;
+            writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, data, offset, count);
+            offset += count;
+            length -= count;
+        } while (length > 0);
+    }
+
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        markReset(streamId);
+        ByteBuffer payload = ByteBuffer.allocate(4).putInt(errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload.array(), 0, 4);
+    }
+
+    // A stream whose handler is queued or running stays in streams, counted against the concurrency limit,
+    // until the handler sees the reset and returns
+    private synchronized void markReset(int streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            if (!stream.serving) {
+                streams.remove(streamId);
+            }
+            stream.reset = true;
+            stream.receiving = false;
+            notifyAll();
+        }
+    }
+
+    private void windowUpdate(int streamId, long increment) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(4).putInt((int) increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload.array(), 0, 4);
+    }
+
+    /**
+     * Tells the client no more streams will be started, with NO_ERROR for a graceful close. Streams it
+     * already opened are still answered. Failures to send are ignored, the connection is closing anyway.
+     */
+    public void goAway(int errorCode) {
+        synchronized (this) {
+            goingAway = true;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload.array(), 0, 8);
+        } catch (IOException e) {
+            // Nobody left to tell
+        }
+    }
+
+    public void goAway() {
+        goAway(NO_ERROR);
+    }
+
+    public synchronized boolean isGoingAway() {
+        return goingAway;
+    }
+
+    // Whether no stream is being received or answered, an idle connection can be closed after goAway
+    public synchronized boolean isIdle() {
+        return streams.isEmpty();
+    }
+
+    /**
+     * Fails the streams still being answered, called once the socket is closed.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Stream stream : streams.values()) {
+            stream.reset = true;
+        }
+        streams.clear();
+        notifyAll();
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            send(new ByteBuffer[] {frameHeader(length, type, flags, streamId), ByteBuffer.wrap(payload, offset, length)});
+        }
+    }
+
+    private void send(ByteBuffer[] frames) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+        }
+        transport.send(frames);
+    }
+
+    private static ByteBuffer frameHeader(int length, int type, int flags, int streamId) {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        header.put((byte) type).put((byte) flags).putInt(streamId);
+        header.flip();
+        return header;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
@@ -1,166 +1,312 @@
-import java.io.BufferedReader;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * A request parsed from its raw bytes. The request line is tokenized up front, headers are only
+ * indexed by offset and their values are turned into Strings when they are asked for.
+ */
 public class HttpRequest {
 
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "HEAD", "TRACE", "OPTIONS", "PUT", "DELETE", "PATCH"};
+
     private String method;
     private String path;
+    private String version;
+    private boolean endOfStream;
+    private Boolean Corrupted;
+    // A status the request is refused with before it is handled (408, 413, 431), 0 when it is served
+    private int rejectStatus;
+    private long receivedAt;
+
+    // Request line and headers as received, header i spans headerOffsets[4i..4i+3]: name start/end, value start/end
+    private final byte[] head;
+    private final int headLength;
+    private int[] headerOffsets = new int[32];
+    private int headerCount;
     private Map<String, String> headers;
     private String fullRequest;
-    private Boolean Corrupted;
-    
+    private byte[] body;
+    private int bodyOffset;
+    private int bodyLength;
+
     private String requestedPage;
-    private boolean isImage;
     private int contentLength;
-    private String referer;
-    private String userAgent;
+    private boolean chunked;
+    // Both Content-Length and Transfer-Encoding were sent, the connection is not reused after the answer
+    private boolean ambiguousLength;
     private HashMap<String, String> parameters;
-    private boolean isChunked;
 
-    public HttpRequest(BufferedReader reader) throws IOException {
+    private HttpRequest() {
+        this.head = new byte[0];
+        this.headLength = 0;
+        this.endOfStream = true;
+        this.Corrupted = true;
+    }
+
+    /**
+     * Parses the request line and indexes the headers of head[0..length), which holds everything
+     * up to and including the empty line that ends the headers.
+     */
+    public HttpRequest(byte[] head, int length) {
+        this.head = head;
+        this.headLength = length;
         this.Corrupted = false;
-        parseRequest(reader);
+        parseRequest();
     }
-    
 
-    private void parseRequest(BufferedReader reader) {
+    // Returned by readers when the client closed the connection (or stayed idle) between requests
+    public static HttpRequest endOfStream() {
+        return new HttpRequest();
+    }
+
+    /**
+     * Returned by readers for a request they gave up on, e.g. 431 for a head over the size limit or
+     * 408 when it did not arrive in time. It is answered with that status and the connection is closed.
+     */
+    public static HttpRequest rejected(int status) {
+        HttpRequest request = new HttpRequest();
+        request.endOfStream = false;
+        request.rejectStatus = status;
+        return request;
+    }
+
+    private void parseRequest() {
+        int lineEnd = lineEnd(0);
+        int lineLength = trimCarriageReturn(0, lineEnd);
+        int firstSpace = indexOf((byte) ' ', 0, lineLength);
+        if (firstSpace <= 0) {
+            Corrupted = true;
+            return;
+        }
+        int secondSpace = indexOf((byte) ' ', firstSpace + 1, lineLength);
+        int targetEnd = secondSpace < 0 ? lineLength : secondSpace;
+        if (targetEnd == firstSpace + 1 || (secondSpace >= 0 && indexOf((byte) ' ', secondSpace + 1, lineLength) >= 0)) {
+            Corrupted = true;
+            return;
+        }
+
+        method = method(firstSpace);
+        version = "HTTP/1.0";
+        if (secondSpace >= 0) {
+            if (regionEquals(secondSpace + 1, lineLength, HTTP_1_1)) {
+                version = "HTTP/1.1";
+            } else if (!regionEquals(secondSpace + 1, lineLength, HTTP_1_0)) {
+                version = new String(head, secondSpace + 1, lineLength - secondSpace - 1, StandardCharsets.ISO_8859_1);
+                Corrupted = true;
+            }
+        }
+
+        String target = new String(head, firstSpace + 1, targetEnd - firstSpace - 1, StandardCharsets.UTF_8);
+        parameters = new HashMap<>();
+        int query = target.indexOf('?');
+        if (query >= 0) {
+            parseParameters(target, query + 1);
+            path = target.substring(0, query);
+        } else {
+            path = target;
+        }
+
+        indexHeaders(lineEnd + 1);
+
+        if ("/".equals(path)) {
+            path = MultiThreadedWebServer.getDefaultPage();
+        }
+        requestedPage = path;
+
         try {
-            String requestLine = reader.readLine();
-            if (requestLine == null) {
-                System.out.println("Error reading request. Ignoring");
+            contentLength = parseContentLength();
+        } catch (NumberFormatException e) {
+            // Where the body ends is unknown, so is where the next request starts: answered with 400 and closed
+            Corrupted = true;
+            contentLength = 0;
+        }
+
+        // Transfer-Encoding overrides Content-Length, and chunked must be the last coding applied
+        String transferEncoding = getHeader("Transfer-Encoding");
+        if (transferEncoding != null) {
+            String[] codings = transferEncoding.split(",");
+            chunked = codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
+            ambiguousLength = findHeader("Content-Length") >= 0;
+            contentLength = 0;
+            if (!chunked) {
                 Corrupted = true;
+            }
+        }
+    }
+
+    private void indexHeaders(int position) {
+        while (position < headLength) {
+            int lineEnd = lineEnd(position);
+            int end = trimCarriageReturn(position, lineEnd);
+            if (end == position) {
                 return;
             }
-            fullRequest = requestLine;
-            String[] requestParts = requestLine.split(" ");
-            if (requestParts.length == 3 || requestParts.length == 2) {
-                method = requestParts[0];
-                String fullPath = requestParts[1];
-                parseParameters(fullPath);
-                String[] pathAndParams = requestParts[1].split("\\?");
-                path = pathAndParams[0];
-                if (requestParts.length == 3) {
-                    if (!requestParts[2].equals("HTTP/1.1") && !requestParts[2].equals("HTTP/1.0")) {
-                        Corrupted = true;
-                    }
-                }                
-            }
-    
-            headers = new HashMap<>();
-            String headerLine;
-            while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
-                fullRequest += "\r\n" + headerLine;
-                String[] headerParts = headerLine.split(": ");
-                if (headerParts.length == 2) {
-                    headers.put(headerParts[0], headerParts[1]);
+            int colon = indexOf((byte) ':', position, end);
+            if (colon > position) {
+                int valueStart = colon + 1;
+                while (valueStart < end && (head[valueStart] == ' ' || head[valueStart] == '\t')) {
+                    valueStart++;
+                }
+                int valueEnd = end;
+                while (valueEnd > valueStart && (head[valueEnd - 1] == ' ' || head[valueEnd - 1] == '\t')) {
+                    valueEnd--;
+                }
+                if (headerOffsets.length < (headerCount + 1) * 4) {
+                    int[] bigger = new int[headerOffsets.length * 2];
+                    System.arraycopy(headerOffsets, 0, bigger, 0, headerOffsets.length);
+                    headerOffsets = bigger;
                 }
+                int slot = headerCount * 4;
+                headerOffsets[slot] = position;
+                headerOffsets[slot + 1] = colon;
+                headerOffsets[slot + 2] = valueStart;
+                headerOffsets[slot + 3] = valueEnd;
+                headerCount++;
             }
+            position = lineEnd + 1;
+        }
+    }
 
-            if ("/".equals(path)) {
-                path = MultiThreadedWebServer.getDefaultPage();
+    // Throws on a value that isn't a plain decimal number and on a repeated header, whose values may
+    // disagree with each other (or with a proxy in front that picked the other one)
+    private int parseContentLength() {
+        int slot = findHeader("Content-Length");
+        if (slot < 0) {
+            return 0;
+        }
+        if (findHeader("Content-Length", slot / 4 + 1) >= 0) {
+            throw new NumberFormatException("Repeated Content-Length");
+        }
+        int start = headerOffsets[slot + 2];
+        int end = headerOffsets[slot + 3];
+        if (start == end) {
+            throw new NumberFormatException("Empty Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = head[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Invalid Content-Length");
             }
-    
-            path = path.replaceAll("\\.\\./", "/");
-            requestedPage = path;
-            isImage = path.endsWith(".bmp") || path.endsWith(".gif") || path.endsWith(".png") || path.endsWith(".jpg");
-            contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
-            referer = headers.getOrDefault("Referer", "");
-            userAgent = headers.getOrDefault("User-Agent", "");
-            isChunked = headers.containsKey("chunked") && headers.get("chunked").equals("yes") ? true : false;
-            
-            parseBodyParameters(reader);
-            
-        } catch (IOException | NumberFormatException e) {
-            System.out.println("Error parsing request");
+            value = value * 10 + digit;
         }
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Content-Length too large");
+        }
+        return (int) value;
     }
 
-    private void parseParameters(String fullPath) {
-        parameters = new HashMap<>();
-        try {
-            if (fullPath.contains("?")) {
-                String queryString = fullPath.split("\\?")[1];
-                String[] pairs = queryString.split("&");
-                for (String pair : pairs) {
-                    String[] keyValue = pair.split("=");
-                    if (keyValue.length == 2) {
-                        parameters.put(keyValue[0], keyValue[1]);
-                    } else {
-                        System.err.println("Error: Invalid key-value pair format in query string");
-                    }
-                }
-            } 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            System.out.println("Error: Malformed query string");
+    private void parseParameters(String target, int from) {
+        int position = from;
+        while (position <= target.length()) {
+            int amp = target.indexOf('&', position);
+            int pairEnd = amp < 0 ? target.length() : amp;
+            int equals = target.indexOf('=', position);
+            if (pairEnd == position) {
+                // Empty pair, e.g. a trailing '&'
+            } else if (equals > position && equals < pairEnd - 1 && target.lastIndexOf('=', pairEnd - 1) == equals) {
+                parameters.put(target.substring(position, equals), target.substring(equals + 1, pairEnd));
+            } else {
+                System.err.println("Error: Invalid key-value pair format in query string");
+            }
+            position = pairEnd + 1;
         }
     }
-    
 
-    private void parseBodyParameters(BufferedReader reader) {
-        try {
-            StringBuilder requestBody = new StringBuilder();
-            int contentLengthToRead = contentLength;
-    
-            // Check if there is content to read
-            if (contentLengthToRead > 0) {
-                while (contentLengthToRead > 0) {
-                    int bytesRead = reader.read();
-                    if (bytesRead == -1) {
-                        break;
-                    }
-                    requestBody.append((char) bytesRead);
-                    contentLengthToRead--;
-                }
-    
-                // Process the request body only if it was read
-                String[] pairs = requestBody.toString().split("&");
-                for (String pair : pairs) {
-                    String[] keyValue = pair.split("=");
-                    if (keyValue.length == 2) {
-                        parameters.put(keyValue[0], keyValue[1]);
-                    }
-                }
-                fullRequest += "\r\n" + requestBody.toString();
+    /**
+     * Attaches the body that followed the headers and reads form parameters from it.
+     */
+    public void setBody(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        body = data;
+        bodyOffset = offset;
+        bodyLength = length;
+        int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            int amp = indexOf(data, (byte) '&', position, end);
+            int pairEnd = amp < 0 ? end : amp;
+            int equals = indexOf(data, (byte) '=', position, pairEnd);
+            if (equals > position && equals < pairEnd - 1 && indexOf(data, (byte) '=', equals + 1, pairEnd) < 0) {
+                parameters.put(new String(data, position, equals - position, StandardCharsets.UTF_8),
+                        new String(data, equals + 1, pairEnd - equals - 1, StandardCharsets.UTF_8));
             }
-        } catch (IOException e) {
-            System.out.println("Error reading request body");
+            position = pairEnd + 1;
         }
+        fullRequest = null;
     }
 
     public void printHeaders() {
-        try {
-            StringBuilder stringHeaders = new StringBuilder();
-            stringHeaders.append("Request headers: ").append("\r\n");
-            stringHeaders.append("Request Method: ").append(this.method).append("\r\n");
-            stringHeaders.append("Requested Page: ").append(this.requestedPage).append("\r\n");
-            stringHeaders.append("IsImage: ").append(this.isImage).append("\r\n");
-            stringHeaders.append("Content Length: ").append(this.contentLength).append("\r\n");
-            stringHeaders.append("Referer: ").append(this.referer).append("\r\n");
-            stringHeaders.append("User Agent: ").append(this.userAgent).append("\r\n");
-            stringHeaders.append("Is Chunked: ").append(this.isChunked).append("\r\n");
-            if(this.parameters != null) {
-                if (this.parameters.size() > 0) {
-                    stringHeaders.append("Parameters: ").append("\r\n");
-                    for (String key : this.parameters.keySet()) {
-                        stringHeaders.append("\t").append(key).append(": ").append(this.parameters.get(key)).append("\r\n");
-                    }
+        System.out.println(describeHeaders());
+    }
+
+    public String describeHeaders() {
+        StringBuilder stringHeaders = new StringBuilder();
+        stringHeaders.append("Request headers: ").append("\r\n");
+        stringHeaders.append("Request Method: ").append(this.method).append("\r\n");
+        stringHeaders.append("Requested Page: ").append(this.requestedPage).append("\r\n");
+        stringHeaders.append("IsImage: ").append(isImage()).append("\r\n");
+        stringHeaders.append("Content Length: ").append(this.contentLength).append("\r\n");
+        stringHeaders.append("Referer: ").append(getReferer()).append("\r\n");
+        stringHeaders.append("User Agent: ").append(getUserAgent()).append("\r\n");
+        stringHeaders.append("Is Chunked: ").append(isChunked()).append("\r\n");
+        if(this.parameters != null) {
+            if (this.parameters.size() > 0) {
+                stringHeaders.append("Parameters: ").append("\r\n");
+                for (String key : this.parameters.keySet()) {
+                    stringHeaders.append("\t").append(key).append(": ").append(this.parameters.get(key)).append("\r\n");
                 }
             }
-            
-            System.out.println(stringHeaders.toString());
-        } catch (Exception e) {
-            System.out.println("Error printing headers");
         }
-    }    
+        return stringHeaders.toString();
+    }
+
+    /**
+     * Case-insensitive header lookup that only builds a String for the matching value.
+     */
+    public String getHeader(String name) {
+        int slot = findHeader(name);
+        if (slot < 0) {
+            return null;
+        }
+        return new String(head, headerOffsets[slot + 2], headerOffsets[slot + 3] - headerOffsets[slot + 2], StandardCharsets.ISO_8859_1);
+    }
+
+    private int findHeader(String name) {
+        return findHeader(name, 0);
+    }
+
+    // The slot of the first header called name at or after header index from, -1 if there is none
+    private int findHeader(String name, int from) {
+        for (int i = from; i < headerCount; i++) {
+            int slot = i * 4;
+            int start = headerOffsets[slot];
+            if (headerOffsets[slot + 1] - start != name.length()) {
+                continue;
+            }
+            boolean matches = true;
+            for (int j = 0; j < name.length() && matches; j++) {
+                matches = toLowerAscii(head[start + j]) == toLowerAscii((byte) name.charAt(j));
+            }
+            if (matches) {
+                return slot;
+            }
+        }
+        return -1;
+    }
 
     public String getRequestedPage() {
         return requestedPage;
     }
 
     public boolean isImage() {
-        return isImage;
+        return path != null && (path.endsWith(".bmp") || path.endsWith(".gif") || path.endsWith(".png") || path.endsWith(".jpg"));
     }
 
     public int getContentLength() {
@@ -168,11 +314,13 @@ public class HttpRequest {
     }
 
     public String getReferer() {
-        return referer;
+        String referer = getHeader("Referer");
+        return referer == null ? "" : referer;
     }
 
     public String getUserAgent() {
-        return userAgent;
+        String userAgent = getHeader("User-Agent");
+        return userAgent == null ? "" : userAgent;
     }
 
     public HashMap<String, String> getParameters() {
@@ -188,18 +336,146 @@ public class HttpRequest {
     }
 
     public Map<String, String> getHeaders() {
+        if (headers == null && !endOfStream) {
+            headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < headerCount; i++) {
+                int slot = i * 4;
+                headers.put(new String(head, headerOffsets[slot], headerOffsets[slot + 1] - headerOffsets[slot], StandardCharsets.ISO_8859_1),
+                        new String(head, headerOffsets[slot + 2], headerOffsets[slot + 3] - headerOffsets[slot + 2], StandardCharsets.ISO_8859_1));
+            }
+        }
         return headers;
     }
 
     public String getFullRequest() {
+        if (fullRequest == null && !endOfStream) {
+            int end = headLength;
+            while (end > 0 && (head[end - 1] == '\r' || head[end - 1] == '\n')) {
+                end--;
+            }
+            fullRequest = new String(head, 0, end, StandardCharsets.ISO_8859_1);
+            if (body != null) {
+                fullRequest += "\r\n" + new String(body, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+            }
+        }
         return fullRequest;
     }
 
+    /**
+     * Refuses the request with 413 when its declared body is over maxBodySize, so readers don't wait for
+     * or buffer the body. Returns whether the body may be read.
+     */
+    public boolean enforceBodyLimit(int maxBodySize) {
+        if (contentLength > maxBodySize) {
+            reject(413);
+            return false;
+        }
+        return true;
+    }
+
+    // Refuses the request, the connection is closed after the answer since the rest of it is not read
+    public void reject(int status) {
+        rejectStatus = status;
+        Corrupted = true;
+    }
+
+    public int getRejectStatus() {
+        return rejectStatus;
+    }
+
+    // System.nanoTime() when the request was received, or accepted for the first request of a
+    // connection, so latency includes the wait for a worker
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
     public Boolean getCorrupted() {
         return Corrupted;
     }
 
+    // Set by readers when the body turns out to be malformed
+    public void setCorrupted(Boolean corrupted) {
+        Corrupted = corrupted;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    public boolean isKeepAlive() {
+        if (ambiguousLength) {
+            return false;
+        }
+        String connection = getHeader("Connection");
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    // Whether the body is sent with Transfer-Encoding: chunked
     public boolean isChunked() {
-        return isChunked;
+        return chunked;
+    }
+
+    private String method(int length) {
+        for (String known : KNOWN_METHODS) {
+            if (known.length() == length) {
+                boolean matches = true;
+                for (int i = 0; i < length && matches; i++) {
+                    matches = head[i] == known.charAt(i);
+                }
+                if (matches) {
+                    return known;
+                }
+            }
+        }
+        return new String(head, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private int lineEnd(int from) {
+        int lf = indexOf((byte) '\n', from, headLength);
+        return lf < 0 ? headLength : lf;
+    }
+
+    private int trimCarriageReturn(int start, int end) {
+        return end > start && head[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private boolean regionEquals(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (head[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        return indexOf(head, value, from, to);
+    }
+
+    private static int indexOf(byte[] data, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
     }
 }
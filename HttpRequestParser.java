@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * Reads successive requests off one connection into a reusable byte buffer.
+ * Each request costs one copy of its head and one of its body, the buffer itself is kept
+ * for the life of the connection so pipelined requests that arrived together are not read twice.
+ */
+public class HttpRequestParser {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final InputStream input;
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int start;
+    private int end;
+    // When the request being read must be complete by, 0 while waiting idle for the next request
+    private long deadline;
+    private boolean timedOut;
+    // Set while waiting for a next request of which nothing has arrived yet
+    private volatile boolean idle;
+    private boolean servedOne;
+
+    /**
+     * Reads requests off socket, which must have a channel-backed or plain blocking stream.
+     * Between requests a read waits up to keepAliveTimeout, once a request has started its head must
+     * arrive within headerTimeout and its body within bodyTimeout, however slowly it trickles in.
+     */
+    public HttpRequestParser(Socket socket) throws IOException {
+        this(socket, socket.getInputStream());
+    }
+
+    // Reads requests off input, decrypted from socket, whose timeout still bounds every read
+    public HttpRequestParser(Socket socket, InputStream input) {
+        this.socket = socket;
+        this.input = input;
+        this.maxHeaderSize = MultiThreadedWebServer.getMaxHeaderSize();
+        this.maxBodySize = MultiThreadedWebServer.getMaxBodySize();
+    }
+
+    /**
+     * Blocks until the next full request has arrived. Returns an end of stream request when the
+     * client closes the connection or times out between requests, and a rejected request (408, 413, 431)
+     * when it breaks a deadline or size limit.
+     */
+    public HttpRequest readRequest() throws IOException {
+        int headEnd;
+        deadline = 0;
+        timedOut = false;
+        while (true) {
+            start = skipEmptyLines(buffer, start, end);
+            headEnd = findHeadEnd(buffer, start, end);
+            if (headEnd >= 0) {
+                break;
+            }
+            if (end - start >= maxHeaderSize) {
+                // Hand the handler a request it will reject, the connection is closed afterwards
+                return HttpRequest.rejected(431);
+            }
+            if (deadline == 0 && end > start) {
+                deadline = System.currentTimeMillis() + MultiThreadedWebServer.getHeaderTimeout();
+            }
+            idle = servedOne && end == start;
+            boolean filled = fill();
+            idle = false;
+            if (!filled) {
+                return timedOut && end > start ? HttpRequest.rejected(408) : HttpRequest.endOfStream();
+            }
+        }
+
+        HttpRequest httpRequest = new HttpRequest(Arrays.copyOfRange(buffer, start, headEnd), headEnd - start);
+        start = headEnd;
+        servedOne = true;
+        if (!httpRequest.enforceBodyLimit(maxBodySize)) {
+            return httpRequest;
+        }
+
+        deadline = System.currentTimeMillis() + MultiThreadedWebServer.getBodyTimeout();
+        int contentLength = httpRequest.getContentLength();
+        if (contentLength > 0) {
+            byte[] body = new byte[contentLength];
+            int received = Math.min(contentLength, end - start);
+            System.arraycopy(buffer, start, body, 0, received);
+            start += received;
+            // Whatever is still missing is read straight into the body, in bulk
+            while (received < contentLength) {
+                int read = read(body, received, contentLength - received);
+                if (read < 0) {
+                    break;
+                }
+                received += read;
+            }
+            if (received < contentLength) {
+                // Cut short by the deadline or by the client closing, a partial body is never served
+                httpRequest.reject(timedOut ? 408 : 400);
+                return httpRequest;
+            }
+            httpRequest.setBody(body, 0, received);
+        } else if (httpRequest.isChunked()) {
+            readChunkedBody(httpRequest);
+        }
+        return httpRequest;
+    }
+
+    /**
+     * Whether readRequest is waiting for the next request on a keep-alive connection and none of it has
+     * arrived, so closing the connection now loses nothing. A new connection whose first request is
+     * still on its way is not idle. Safe to call from any thread.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Whether the connection opens with prefix, which is then consumed. Reads only as far as it takes to
+     * tell, so an HTTP/1.x request is left whole for readRequest.
+     */
+    public boolean startsWith(byte[] prefix) throws IOException {
+        deadline = 0;
+        timedOut = false;
+        while (true) {
+            int available = Math.min(end - start, prefix.length);
+            for (int i = 0; i < available; i++) {
+                if (buffer[start + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            if (available == prefix.length) {
+                start += prefix.length;
+                return true;
+            }
+            if (deadline == 0 && end > start) {
+                deadline = System.currentTimeMillis() + MultiThreadedWebServer.getHeaderTimeout();
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    // Hands over whatever was read past the last request, for a protocol taking over the connection
+    public byte[] takeBuffered() {
+        byte[] rest = Arrays.copyOfRange(buffer, start, end);
+        start = 0;
+        end = 0;
+        return rest;
+    }
+
+    // Decodes the chunks as they arrive, a malformed body marks the request corrupted
+    private void readChunkedBody(HttpRequest httpRequest) throws IOException {
+        ChunkedBodyDecoder decoder = new ChunkedBodyDecoder(maxBodySize);
+        while (true) {
+            start += decoder.decode(buffer, start, end - start);
+            if (decoder.isDone()) {
+                httpRequest.setBody(decoder.getBody(), 0, decoder.getLength());
+                return;
+            }
+            if (decoder.isTooLarge()) {
+                httpRequest.reject(413);
+                return;
+            }
+            if (decoder.isFailed() || !fill()) {
+                if (timedOut) {
+                    httpRequest.reject(408);
+                } else {
+                    httpRequest.setCorrupted(true);
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxHeaderSize + INITIAL_BUFFER_SIZE));
+        }
+        int read = read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    // One read bounded by the current deadline, -1 at end of stream, on a timeout or a reset connection
+    private int read(byte[] target, int offset, int length) throws IOException {
+        long timeout = MultiThreadedWebServer.getKeepAliveTimeout();
+        if (deadline != 0) {
+            timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+                timedOut = true;
+                return -1;
+            }
+        }
+        int read;
+        try {
+            socket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+            read = input.read(target, offset, length);
+        } catch (SocketTimeoutException e) {
+            timedOut = true;
+            return -1;
+        } catch (IOException e) {
+            // Reset connection, nothing more to read
+            return -1;
+        }
+        if (read > 0) {
+            MultiThreadedWebServer.getMetrics().addBytesReceived(read);
+        }
+        return read;
+    }
+
+    // Skips the empty lines clients may leave between pipelined requests
+    static int skipEmptyLines(byte[] data, int from, int to) {
+        while (from < to && (data[from] == '\r' || data[from] == '\n')) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Returns the index just past the empty line that ends the headers, or -1 if it hasn't arrived yet.
+     * Bare LF line endings are accepted as well as CRLF.
+     */
+    static int findHeadEnd(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < to && data[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < to && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+}
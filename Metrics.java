@@ -0,0 +1,321 @@
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Live counters of the server, rendered in the Prometheus text format on the metrics path.
+ * Everything recorded per request is a LongAdder or a Histogram bucket, so recording costs a few
+ * uncontended atomic adds and never takes a lock. Gauges such as the executor queue length and the
+ * cache sizes are read only when the metrics are rendered.
+ */
+public class Metrics {
+
+    /**
+     * Requests are timed per route, the handful of paths the server actually distinguishes.
+     */
+    public enum Route {
+        STATIC("static"), PARAMS_INFO("params_info"), DELETE("delete"), METRICS("metrics"), OTHER("other");
+
+        private final String label;
+
+        Route(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Connection and worker pool figures of one acceptor shard, exported with a shard label.
+     */
+    public static class Shard {
+        private final int id;
+        private final LongAdder openConnections = new LongAdder();
+        private final LongAdder acceptedConnections = new LongAdder();
+        private final LongAdder rejectedTasks = new LongAdder();
+        private volatile ExecutorService executor;
+
+        Shard(int id) {
+            this.id = id;
+        }
+
+        public void connectionOpened() {
+            acceptedConnections.increment();
+            openConnections.increment();
+        }
+
+        public void connectionClosed() {
+            openConnections.decrement();
+        }
+
+        public void taskRejected() {
+            rejectedTasks.increment();
+        }
+
+        // The pool whose queue and threads are reported, only a ThreadPoolExecutor has a queue to show
+        public void setExecutor(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        private ThreadPoolExecutor threadPool() {
+            ExecutorService pool = executor;
+            return pool instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) pool : null;
+        }
+    }
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "TRACE", "OPTIONS", "PUT", "DELETE", "PATCH", "other"};
+    private static final int STATUS_CODES = 600;
+    // Prometheus bucket bounds in microseconds, the histograms themselves are much finer
+    private static final long[] BUCKETS = {100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // Index method * STATUS_CODES + status, an adder is created the first time its pair is seen
+    private final AtomicReferenceArray<LongAdder> requests = new AtomicReferenceArray<>(METHODS.length * STATUS_CODES);
+    private final Histogram[] latencies = new Histogram[Route.values().length];
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final Histogram handshakeLatency = new Histogram();
+    private final LongAdder http2Connections = new LongAdder();
+    private final LongAdder http2Streams = new LongAdder();
+    private final LongAdder http2RefusedStreams = new LongAdder();
+    private final LongAdder configReloads = new LongAdder();
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    public static Route route(HttpRequest httpRequest, String metricsPath) {
+        String method = httpRequest.getMethod();
+        String path = httpRequest.getPath();
+        if ("GET".equals(method) || "HEAD".equals(method)) {
+            return path != null && path.equals(metricsPath) ? Route.METRICS : Route.STATIC;
+        }
+        if ("POST".equals(method) && path != null) {
+            if (path.equals("/params_info.html")) {
+                return Route.PARAMS_INFO;
+            }
+            if (path.equals("/delete")) {
+                return Route.DELETE;
+            }
+        }
+        return Route.OTHER;
+    }
+
+    public void recordRequest(String method, int status, Route route, long durationNanos) {
+        int index = methodIndex(method) * STATUS_CODES + (status > 0 && status < STATUS_CODES ? status : 0);
+        LongAdder counter = requests.get(index);
+        if (counter == null) {
+            requests.compareAndSet(index, null, new LongAdder());
+            counter = requests.get(index);
+        }
+        counter.increment();
+        latencies[route.ordinal()].record(durationNanos / 1000);
+    }
+
+    private static int methodIndex(String method) {
+        // Methods are interned by the parser, so most lookups end at the first comparison
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    public void addBytesReceived(long count) {
+        bytesReceived.add(count);
+    }
+
+    public void addBytesSent(long count) {
+        bytesSent.add(count);
+    }
+
+    // Registers the next acceptor shard, numbered from 0
+    public synchronized Shard addShard() {
+        Shard shard = new Shard(shards.size());
+        shards.add(shard);
+        return shard;
+    }
+
+    // Connections open over all shards, whether idle, waiting for a worker or being served
+    public long getOpenConnections() {
+        long open = 0;
+        for (Shard shard : shards) {
+            open += shard.openConnections.sum();
+        }
+        return open;
+    }
+
+    public void configReloaded() {
+        configReloads.increment();
+    }
+
+    public void requestShed() {
+        shedRequests.increment();
+    }
+
+    // A TLS handshake that completed, resumed when it reused a cached session or a ticket
+    public void tlsHandshake(boolean resumed, long durationNanos) {
+        (resumed ? resumedHandshakes : fullHandshakes).increment();
+        handshakeLatency.record(durationNanos / 1000);
+    }
+
+    public void tlsHandshakeFailed() {
+        failedHandshakes.increment();
+    }
+
+    public void http2Connection() {
+        http2Connections.increment();
+    }
+
+    public void http2Stream() {
+        http2Streams.increment();
+    }
+
+    // A stream reset with REFUSED_STREAM, over the concurrent stream limit or with the worker queue full
+    public void http2StreamRefused() {
+        http2RefusedStreams.increment();
+    }
+
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public Histogram getLatency(Route route) {
+        return latencies[route.ordinal()];
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String render(StaticFileCache fileCache, ContentEncoder contentEncoder) {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "http_requests_total", "counter", "Requests answered, by method and status code.");
+        for (int i = 0; i < requests.length(); i++) {
+            LongAdder counter = requests.get(i);
+            if (counter != null) {
+                out.append("http_requests_total{method=\"").append(METHODS[i / STATUS_CODES])
+                        .append("\",status=\"").append(i % STATUS_CODES).append("\"} ").append(counter.sum()).append('\n');
+            }
+        }
+
+        header(out, "http_request_duration_seconds", "histogram", "Time from a received request to its last byte written, waiting for a worker included, by route.");
+        for (Route route : Route.values()) {
+            histogramSamples(out, "http_request_duration_seconds", "route=\"" + route.label + "\",", latencies[route.ordinal()]);
+        }
+
+        header(out, "http_request_latency_seconds", "summary", "Latency percentiles since startup, by route.");
+        for (Route route : Route.values()) {
+            Histogram histogram = latencies[route.ordinal()];
+            for (double quantile : QUANTILES) {
+                out.append("http_request_latency_seconds{route=\"").append(route.label).append("\",quantile=\"")
+                        .append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append("http_request_latency_seconds_sum{route=\"").append(route.label).append("\"} ")
+                    .append(seconds(histogram.getSum())).append('\n');
+            out.append("http_request_latency_seconds_count{route=\"").append(route.label).append("\"} ")
+                    .append(histogram.getTotalCount()).append('\n');
+        }
+
+        sample(out, "http_received_bytes_total", "counter", "Bytes read from clients.", bytesReceived.sum());
+        sample(out, "http_sent_bytes_total", "counter", "Bytes of response heads and bodies written.", bytesSent.sum());
+        shardSamples(out, "http_connections_accepted_total", "counter", "Connections accepted, by shard.",
+                shard -> shard.acceptedConnections.sum());
+        shardSamples(out, "http_connections_open", "gauge", "Connections currently open, by shard.",
+                shard -> shard.openConnections.sum());
+        shardSamples(out, "executor_queue_length", "gauge", "Tasks waiting for a worker thread, by shard.",
+                shard -> shard.threadPool() == null ? -1 : shard.threadPool().getQueue().size());
+        shardSamples(out, "executor_active_threads", "gauge", "Worker threads running a task, by shard.",
+                shard -> shard.threadPool() == null ? -1 : shard.threadPool().getActiveCount());
+        shardSamples(out, "executor_pool_size", "gauge", "Worker threads started, by shard.",
+                shard -> shard.threadPool() == null ? -1 : shard.threadPool().getPoolSize());
+        shardSamples(out, "executor_completed_tasks_total", "counter", "Tasks the workers finished, by shard.",
+                shard -> shard.threadPool() == null ? -1 : shard.threadPool().getCompletedTaskCount());
+        shardSamples(out, "executor_rejected_tasks_total", "counter", "Connections or requests refused because the worker queue was full, by shard.",
+                shard -> shard.rejectedTasks.sum());
+        sample(out, "http_requests_shed_total", "counter", "Requests answered with 503 because the concurrency limit was reached.", shedRequests.sum());
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter != null) {
+            sample(out, "concurrency_limit", "gauge", "Requests allowed in flight at once.", Math.min(limiter.getLimit(), Integer.MAX_VALUE));
+            sample(out, "concurrency_in_flight", "gauge", "Requests being served.", limiter.getInFlight());
+        }
+
+        header(out, "tls_handshakes_total", "counter", "TLS handshakes, by result: full, resumed from a cached session or ticket, or failed.");
+        out.append("tls_handshakes_total{result=\"full\"} ").append(fullHandshakes.sum()).append('\n');
+        out.append("tls_handshakes_total{result=\"resumed\"} ").append(resumedHandshakes.sum()).append('\n');
+        out.append("tls_handshakes_total{result=\"failed\"} ").append(failedHandshakes.sum()).append('\n');
+        header(out, "tls_handshake_duration_seconds", "histogram", "Time from a connection's first handshake message to the handshake being done.");
+        histogramSamples(out, "tls_handshake_duration_seconds", "", handshakeLatency);
+
+        sample(out, "http2_connections_total", "counter", "Connections that switched to HTTP/2.", http2Connections.sum());
+        sample(out, "http2_streams_total", "counter", "HTTP/2 streams opened by clients, each one request.", http2Streams.sum());
+        sample(out, "http2_streams_refused_total", "counter", "HTTP/2 streams refused for the client to retry.", http2RefusedStreams.sum());
+        sample(out, "config_reloads_total", "counter", "Times config.ini was reloaded while running.", configReloads.sum());
+
+        if (fileCache != null) {
+            sample(out, "static_cache_hits_total", "counter", "Static file lookups served from memory.", fileCache.getHits());
+            sample(out, "static_cache_misses_total", "counter", "Static file lookups that read the file.", fileCache.getMisses());
+            sample(out, "static_cache_evictions_total", "counter", "Static files evicted to stay under cacheMaxBytes.", fileCache.getEvictions());
+            sample(out, "static_cache_bytes", "gauge", "Bytes of static files held in memory.", fileCache.getCurrentBytes());
+        }
+        if (contentEncoder != null) {
+            sample(out, "compression_cache_hits_total", "counter", "Compressed variants served from memory.", contentEncoder.getHits());
+            sample(out, "compression_cache_misses_total", "counter", "Static files compressed on request.", contentEncoder.getMisses());
+            sample(out, "compression_cache_bytes", "gauge", "Bytes of compressed variants held in memory.", contentEncoder.getCachedBytes());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // The buckets, sum and count of a histogram, labels is empty or a list of labels ending with a comma
+    private static void histogramSamples(StringBuilder out, String name, String labels, Histogram histogram) {
+        long count = histogram.getTotalCount();
+        for (long bound : BUCKETS) {
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(seconds(bound)).append("\"} ")
+                    .append(histogram.getCountAtOrBelow(bound)).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(count).append('\n');
+        String sampleLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(sampleLabels).append(' ').append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(sampleLabels).append(' ').append(count).append('\n');
+    }
+
+    // One sample per shard, shards for which value is negative (no such figure) are left out
+    private void shardSamples(StringBuilder out, String name, String type, String help, ToLongFunction<Shard> value) {
+        header(out, name, type, help);
+        for (Shard shard : shards) {
+            long sample = value.applyAsLong(shard);
+            if (sample >= 0) {
+                out.append(name).append("{shard=\"").append(shard.id).append("\"} ").append(sample).append('\n');
+            }
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String type, String help, long value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Plain decimal the way Prometheus writes bounds, 0.0001 rather than Double's 1.0E-4
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
@@ -1,40 +1,229 @@
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.InputStream;
 import java.util.Properties;
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 
 public class MultiThreadedWebServer {
 
-    private static final int MAX_THREADS;
+    private static final String CONFIG_FILE = "config.ini";
+    // How long a change to config.ini is left to settle before it is read, editors write in several steps
+    private static final long CONFIG_SETTLE_MILLIS = 200;
+    // How often connections are checked for idleness while the server drains
+    private static final long DRAIN_INTERVAL = 100;
+    // Settings that take effect when config.ini is reloaded, the others need a restart
+    private static final Set<String> RELOADABLE_SETTINGS = new HashSet<>(Arrays.asList("maxThreads", "root",
+            "defaultPage", "keepAliveTimeout", "maxKeepAliveRequests", "metricsPath", "rejectionPolicy",
+            "headerTimeout", "bodyTimeout", "maxHeaderSize", "maxBodySize", "shutdownTimeout"));
+
+    private static final int SHARDS;
     private static final int PORT;
-    private static final String ROOT_DIRECTORY;
-    private static final String DEFAULT_PAGE;
-    private static  List<HashMap<String, String>> EMAILS;
+    private static final String ENGINE;
+    private static final int SELECTOR_THREADS;
+    private static final String EXECUTOR;
+    private static final int MAX_CONNECTIONS;
+    private static final StaticFileCache FILE_CACHE;
+    private static final long CACHE_REVALIDATE_INTERVAL;
+    private static final long ZERO_COPY_THRESHOLD;
+    private static final ContentEncoder CONTENT_ENCODER;
+    private static final AccessLog ACCESS_LOG;
+    private static final EmailStore EMAILS;
+    private static final EmailJournal EMAIL_JOURNAL;
+    private static final int MAX_QUEUED_CONNECTIONS;
+    private static final int RETRY_AFTER;
+    private static final ConcurrencyLimiter CONCURRENCY_LIMITER;
+    private static final int TLS_PORT;
+    private static final SSLContext TLS_CONTEXT;
+    private static final String[] TLS_PROTOCOLS;
+    private static final ThreadPoolExecutor TLS_HANDSHAKE_POOL;
+    private static final int TLS_HANDSHAKE_TIMEOUT;
+    private static final boolean HTTP2;
+    private static final int HTTP2_MAX_CONCURRENT_STREAMS;
+    private static final int HTTP2_INITIAL_WINDOW_SIZE;
+    private static final ThreadPoolExecutor HTTP2_POOL;
+    private static final boolean CONFIG_RELOAD;
+    // Reloaded from config.ini while the server runs, see applySettings
+    private static volatile int MAX_THREADS;
+    private static volatile Site SITE;
+    private static volatile int KEEP_ALIVE_TIMEOUT;
+    private static volatile int MAX_KEEP_ALIVE_REQUESTS;
+    private static volatile Map<String, String> CACHE_CONTROL;
+    private static volatile String METRICS_PATH;
+    private static volatile String REJECTION_POLICY;
+    private static volatile int HEADER_TIMEOUT;
+    private static volatile int BODY_TIMEOUT;
+    private static volatile int MAX_HEADER_SIZE;
+    private static volatile int MAX_BODY_SIZE;
+    private static volatile long SHUTDOWN_TIMEOUT;
+    private static volatile Properties CONFIG;
+    // What a graceful shutdown has to stop and drain
+    private static final List<ServerSocketChannel> LISTENERS = new CopyOnWriteArrayList<>();
+    private static final List<ThreadPoolExecutor> WORKER_POOLS = new CopyOnWriteArrayList<>();
+    // Run connections of the blocking engine with executor=virtual, not resized but waited for on shutdown
+    private static final List<ExecutorService> UNBOUNDED_EXECUTORS = new CopyOnWriteArrayList<>();
+    private static final List<NioWebServer> NIO_SERVERS = new CopyOnWriteArrayList<>();
+    private static final Set<RequestHandler> OPEN_HANDLERS = ConcurrentHashMap.newKeySet();
+    private static volatile int ACTIVE_SHARDS = 1;
+    private static volatile boolean DRAINING;
+    private static final Metrics METRICS = new Metrics();
 
     static {
-        // Initialize default values
-        int maxThreads = 10;
+        // Initialize default values, those of the reloadable settings are in applySettings
+        int shards = 1;
         int port = 8080;
-        String rootDirectory = "/";
-        String defaultPage = "index.html";
-
+        String engine = "blocking";
+        int selectorThreads = 1;
+        String executor = "fixed";
+        int maxConnections = 10000;
+        long cacheMaxBytes = 64L * 1024 * 1024;
+        long cacheMaxFileSize = 1024 * 1024;
+        long cacheRevalidateInterval = 1000;
+        long zeroCopyThreshold = 256 * 1024;
+        // Compressible content types and the smallest body worth compressing for each
+        Map<String, Long> compressMinSizes = new HashMap<>();
+        compressMinSizes.put("text/html", 256L);
+        compressMinSizes.put("text/plain", 256L);
+        int compressionLevel = 6;
+        long compressionCacheBytes = 16L * 1024 * 1024;
+        String accessLogFile = "access.log";
+        String accessLogLevel = "info";
+        double accessLogSampleRate = 1.0;
+        int accessLogBufferSize = 8192;
+        long accessLogMaxFileSize = 10L * 1024 * 1024;
+        int accessLogMaxFiles = 5;
+        String emailDataDirectory = "data";
+        String emailFsync = "batch";
+        long emailFsyncInterval = 1000;
+        long emailSnapshotEvery = 10000;
+        int maxQueuedConnections = 100;
+        int retryAfter = 1;
+        String concurrencyLimit = "adaptive";
+        int concurrencyLimitMin = 1;
+        int concurrencyLimitMax = 1000;
+        long latencyTarget = 250;
+        int tlsPort = 0;
+        String tlsKeystore = "keystore.p12";
+        String tlsKeystorePassword = "";
+        String tlsKeystoreType = "PKCS12";
+        String tlsProtocols = "";
+        int tlsSessionCacheSize = 20000;
+        int tlsSessionTimeout = 86400;
+        boolean tlsSessionTickets = true;
+        int tlsHandshakeThreads = 2;
+        int tlsHandshakeTimeout = 5000;
+        boolean http2 = true;
+        int http2MaxConcurrentStreams = 100;
+        int http2InitialWindowSize = 65535;
+        boolean configReload = true;
 
         Properties prop = new Properties();
-        try (InputStream input = new FileInputStream("config.ini")) {
+        try (InputStream input = new FileInputStream(CONFIG_FILE)) {
             prop.load(input);
 
             port = Integer.parseInt(prop.getProperty("port"));
-            maxThreads = Integer.parseInt(prop.getProperty("maxThreads"));
-            rootDirectory = prop.getProperty("root");
-            defaultPage = prop.getProperty("defaultPage");
+            engine = prop.getProperty("engine", engine);
+            // The nio engine's workers only run parsed requests, so it shards per processor by default. A blocking
+            // worker is held by its connection for as long as it stays open, so a single pool is the default there.
+            if ("nio".equalsIgnoreCase(engine)) {
+                shards = Runtime.getRuntime().availableProcessors();
+            }
+            shards = Integer.parseInt(prop.getProperty("shards", String.valueOf(shards)));
+            selectorThreads = Integer.parseInt(prop.getProperty("selectorThreads", String.valueOf(selectorThreads)));
+            executor = prop.getProperty("executor", executor);
+            maxConnections = Integer.parseInt(prop.getProperty("maxConnections", String.valueOf(maxConnections)));
+            cacheMaxBytes = Long.parseLong(prop.getProperty("cacheMaxBytes", String.valueOf(cacheMaxBytes)));
+            cacheMaxFileSize = Long.parseLong(prop.getProperty("cacheMaxFileSize", String.valueOf(cacheMaxFileSize)));
+            cacheRevalidateInterval = Long.parseLong(prop.getProperty("cacheRevalidateInterval", String.valueOf(cacheRevalidateInterval)));
+            zeroCopyThreshold = Long.parseLong(prop.getProperty("zeroCopyThreshold", String.valueOf(zeroCopyThreshold)));
+            for (String key : prop.stringPropertyNames()) {
+                if (key.startsWith("compress.")) {
+                    String type = key.substring("compress.".length()).toLowerCase();
+                    String minSize = prop.getProperty(key).trim();
+                    if (minSize.isEmpty()) {
+                        compressMinSizes.remove(type);
+                    } else {
+                        compressMinSizes.put(type, Long.parseLong(minSize));
+                    }
+                }
+            }
+            compressionLevel = Integer.parseInt(prop.getProperty("compressionLevel", String.valueOf(compressionLevel)));
+            compressionCacheBytes = Long.parseLong(prop.getProperty("compressionCacheBytes", String.valueOf(compressionCacheBytes)));
+            accessLogFile = prop.getProperty("accessLog", accessLogFile);
+            accessLogLevel = prop.getProperty("accessLogLevel", accessLogLevel);
+            accessLogSampleRate = Double.parseDouble(prop.getProperty("accessLogSampleRate", String.valueOf(accessLogSampleRate)));
+            accessLogBufferSize = Integer.parseInt(prop.getProperty("accessLogBufferSize", String.valueOf(accessLogBufferSize)));
+            accessLogMaxFileSize = Long.parseLong(prop.getProperty("accessLogMaxFileSize", String.valueOf(accessLogMaxFileSize)));
+            accessLogMaxFiles = Integer.parseInt(prop.getProperty("accessLogMaxFiles", String.valueOf(accessLogMaxFiles)));
+            emailDataDirectory = prop.getProperty("emailDataDir", emailDataDirectory).trim();
+            emailFsync = prop.getProperty("emailFsync", emailFsync);
+            emailFsyncInterval = Long.parseLong(prop.getProperty("emailFsyncInterval", String.valueOf(emailFsyncInterval)));
+            emailSnapshotEvery = Long.parseLong(prop.getProperty("emailSnapshotEvery", String.valueOf(emailSnapshotEvery)));
+            maxQueuedConnections = Integer.parseInt(prop.getProperty("maxQueuedConnections", String.valueOf(maxQueuedConnections)));
+            retryAfter = Integer.parseInt(prop.getProperty("retryAfter", String.valueOf(retryAfter)));
+            concurrencyLimit = prop.getProperty("concurrencyLimit", concurrencyLimit).trim();
+            concurrencyLimitMin = Integer.parseInt(prop.getProperty("concurrencyLimitMin", String.valueOf(concurrencyLimitMin)));
+            concurrencyLimitMax = Integer.parseInt(prop.getProperty("concurrencyLimitMax", String.valueOf(concurrencyLimitMax)));
+            latencyTarget = Long.parseLong(prop.getProperty("latencyTarget", String.valueOf(latencyTarget)));
+            tlsPort = Integer.parseInt(prop.getProperty("tlsPort", String.valueOf(tlsPort)));
+            tlsKeystore = prop.getProperty("tlsKeystore", tlsKeystore).trim();
+            tlsKeystorePassword = prop.getProperty("tlsKeystorePassword", tlsKeystorePassword);
+            tlsKeystoreType = prop.getProperty("tlsKeystoreType", tlsKeystoreType).trim();
+            tlsProtocols = prop.getProperty("tlsProtocols", tlsProtocols).trim();
+            tlsSessionCacheSize = Integer.parseInt(prop.getProperty("tlsSessionCacheSize", String.valueOf(tlsSessionCacheSize)));
+            tlsSessionTimeout = Integer.parseInt(prop.getProperty("tlsSessionTimeout", String.valueOf(tlsSessionTimeout)));
+            tlsSessionTickets = Boolean.parseBoolean(prop.getProperty("tlsSessionTickets", String.valueOf(tlsSessionTickets)).trim());
+            tlsHandshakeThreads = Integer.parseInt(prop.getProperty("tlsHandshakeThreads", String.valueOf(tlsHandshakeThreads)));
+            tlsHandshakeTimeout = Integer.parseInt(prop.getProperty("tlsHandshakeTimeout", String.valueOf(tlsHandshakeTimeout)));
+            http2 = Boolean.parseBoolean(prop.getProperty("http2", String.valueOf(http2)).trim());
+            http2MaxConcurrentStreams = Integer.parseInt(prop.getProperty("http2MaxConcurrentStreams", String.valueOf(http2MaxConcurrentStreams)));
+            http2InitialWindowSize = Integer.parseInt(prop.getProperty("http2InitialWindowSize", String.valueOf(http2InitialWindowSize)));
+            configReload = Boolean.parseBoolean(prop.getProperty("configReload", String.valueOf(configReload)).trim());
         } catch (IOException ex) {
             System.err.println("Error loading configuration from config.ini: " + ex.getMessage());
             System.err.println("Using default values instead.");
@@ -44,54 +233,839 @@ public class MultiThreadedWebServer {
         }
 
         PORT = port;
+        SHARDS = shards;
+        ENGINE = engine;
+        SELECTOR_THREADS = selectorThreads;
+        EXECUTOR = executor;
+        MAX_CONNECTIONS = maxConnections;
+        FILE_CACHE = new StaticFileCache(cacheMaxBytes, cacheMaxFileSize);
+        CACHE_REVALIDATE_INTERVAL = cacheRevalidateInterval;
+        ZERO_COPY_THRESHOLD = zeroCopyThreshold;
+        CONTENT_ENCODER = new ContentEncoder(compressMinSizes, compressionLevel, compressionCacheBytes);
+        ACCESS_LOG = new AccessLog(AccessLog.parseLevel(accessLogLevel), accessLogSampleRate, accessLogFile,
+                accessLogBufferSize, accessLogMaxFileSize, accessLogMaxFiles);
+        EMAILS = new EmailStore();
+        EmailJournal emailJournal = null;
+        if (!emailDataDirectory.isEmpty()) {
+            try {
+                emailJournal = EmailJournal.open(Paths.get(emailDataDirectory), EMAILS,
+                        EmailJournal.parseSyncPolicy(emailFsync), emailFsyncInterval, emailSnapshotEvery);
+            } catch (IOException ex) {
+                System.err.println("Error loading emails from " + emailDataDirectory + ": " + ex.getMessage());
+                System.err.println("Emails will not be persisted.");
+            }
+        }
+        EMAIL_JOURNAL = emailJournal;
+        MAX_QUEUED_CONNECTIONS = maxQueuedConnections;
+        RETRY_AFTER = retryAfter;
+        CONFIG_RELOAD = configReload;
+        try {
+            applySettings(prop);
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid number format in configuration file.");
+            System.err.println("Using default values instead.");
+            applySettings(new Properties());
+        }
+        CONFIG = prop;
+        CONCURRENCY_LIMITER = createConcurrencyLimiter(concurrencyLimit, MAX_THREADS,
+                concurrencyLimitMin, concurrencyLimitMax, latencyTarget);
+        METRICS.setConcurrencyLimiter(CONCURRENCY_LIMITER);
+        TLS_CONTEXT = tlsPort > 0 ? createTlsContext(tlsKeystore, tlsKeystorePassword, tlsKeystoreType,
+                tlsSessionCacheSize, tlsSessionTimeout, tlsSessionTickets) : null;
+        TLS_PORT = TLS_CONTEXT != null ? tlsPort : 0;
+        TLS_PROTOCOLS = tlsProtocols.isEmpty() ? null : tlsProtocols.split("\\s*,\\s*");
+        TLS_HANDSHAKE_POOL = TLS_CONTEXT != null
+                ? createBoundedPool(Math.max(1, tlsHandshakeThreads), MAX_QUEUED_CONNECTIONS, "tls-handshake") : null;
+        TLS_HANDSHAKE_TIMEOUT = tlsHandshakeTimeout;
+        HTTP2 = http2;
+        HTTP2_MAX_CONCURRENT_STREAMS = Math.max(1, http2MaxConcurrentStreams);
+        // Windows run from the protocol's default up to its maximum of 2^31-1
+        HTTP2_INITIAL_WINDOW_SIZE = Math.max(65535, http2InitialWindowSize);
+        // The blocking engine's connection threads read frames, the streams' requests are served here
+        HTTP2_POOL = http2 && !"nio".equalsIgnoreCase(engine) ? createBoundedPool(Math.max(1, MAX_THREADS), MAX_QUEUED_CONNECTIONS, "http2") : null;
+    }
+
+    /**
+     * The socket's input stream while a TLS handshake reads from it. Each read times out at the
+     * handshake's overall deadline, so a client trickling bytes can't hold a handshake thread.
+     */
+    private static final class HandshakeInput extends FilterInputStream {
+
+        private final Socket socket;
+        private long deadline;
+
+        HandshakeInput(Socket socket, long deadline) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+            this.deadline = deadline;
+        }
+
+        void handshakeDone() {
+            deadline = 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (deadline != 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("TLS handshake timed out");
+                }
+                socket.setSoTimeout((int) remaining);
+            }
+            return super.read(buffer, offset, length);
+        }
+    }
+
+    /**
+     * The root directory, its index and the default page, swapped as one so a request never mixes
+     * the files of two roots.
+     */
+    private static final class Site {
+        final String rootDirectory;
+        final String defaultPage;
+        final StaticFileIndex fileIndex;
+
+        Site(String rootDirectory, String defaultPage, StaticFileIndex fileIndex) {
+            this.rootDirectory = rootDirectory;
+            this.defaultPage = defaultPage;
+            this.fileIndex = fileIndex;
+        }
+    }
+
+    // Applies the settings that can change while the server runs, all of them or none when one is
+    // malformed (NumberFormatException). A new root is fully indexed before requests are sent to it.
+    private static synchronized void applySettings(Properties prop) {
+        // Initialize default values
+        int maxThreads = 10;
+        String rootDirectory = "/";
+        String defaultPage = "index.html";
+        int keepAliveTimeout = 5000;
+        int maxKeepAliveRequests = 100;
+        // Cache-Control per file extension, "default" applies to the rest
+        Map<String, String> cacheControl = new HashMap<>();
+        cacheControl.put("html", "no-cache");
+        cacheControl.put("default", "public, max-age=86400");
+        String metricsPath = "/metrics";
+        String rejectionPolicy = "503";
+        int headerTimeout = 10000;
+        int bodyTimeout = 30000;
+        int maxHeaderSize = 64 * 1024;
+        int maxBodySize = 1024 * 1024;
+        long shutdownTimeout = 30000;
+
+        maxThreads = Integer.parseInt(prop.getProperty("maxThreads", String.valueOf(maxThreads)));
+        rootDirectory = prop.getProperty("root", rootDirectory);
+        defaultPage = prop.getProperty("defaultPage", defaultPage);
+        keepAliveTimeout = Integer.parseInt(prop.getProperty("keepAliveTimeout", String.valueOf(keepAliveTimeout)));
+        maxKeepAliveRequests = Integer.parseInt(prop.getProperty("maxKeepAliveRequests", String.valueOf(maxKeepAliveRequests)));
+        for (String key : prop.stringPropertyNames()) {
+            if (key.startsWith("cacheControl.")) {
+                String policy = prop.getProperty(key).trim();
+                if (!isHeaderValue(policy)) {
+                    System.err.println(key + " is not a valid header value, ignoring it: " + policy);
+                    continue;
+                }
+                cacheControl.put(key.substring("cacheControl.".length()).toLowerCase(), policy);
+            }
+        }
+        metricsPath = prop.getProperty("metricsPath", metricsPath).trim();
+        rejectionPolicy = prop.getProperty("rejectionPolicy", rejectionPolicy).trim();
+        headerTimeout = Integer.parseInt(prop.getProperty("headerTimeout", String.valueOf(headerTimeout)));
+        bodyTimeout = Integer.parseInt(prop.getProperty("bodyTimeout", String.valueOf(bodyTimeout)));
+        maxHeaderSize = Integer.parseInt(prop.getProperty("maxHeaderSize", String.valueOf(maxHeaderSize)));
+        maxBodySize = Integer.parseInt(prop.getProperty("maxBodySize", String.valueOf(maxBodySize)));
+        shutdownTimeout = Long.parseLong(prop.getProperty("shutdownTimeout", String.valueOf(shutdownTimeout)));
+
+        Site site = SITE;
+        if (site != null && !site.rootDirectory.equals(rootDirectory) && !Files.isDirectory(Paths.get(rootDirectory))) {
+            System.err.println("Root directory " + rootDirectory + " is not accessible, still serving " + site.rootDirectory);
+            rootDirectory = site.rootDirectory;
+        }
+        if (site == null || !site.rootDirectory.equals(rootDirectory)) {
+            StaticFileIndex fileIndex = new StaticFileIndex(rootDirectory, CACHE_REVALIDATE_INTERVAL);
+            fileIndex.start();
+            SITE = new Site(rootDirectory, defaultPage, fileIndex);
+            if (site != null) {
+                // Requests still using the old index fall back to checking the filesystem
+                site.fileIndex.close();
+            }
+        } else if (!site.defaultPage.equals(defaultPage)) {
+            SITE = new Site(rootDirectory, defaultPage, site.fileIndex);
+        }
+        boolean resize = MAX_THREADS != 0 && MAX_THREADS != maxThreads;
         MAX_THREADS = maxThreads;
-        ROOT_DIRECTORY = rootDirectory;
-        DEFAULT_PAGE = defaultPage;
-        EMAILS = new ArrayList<HashMap<String, String>>();
+        KEEP_ALIVE_TIMEOUT = keepAliveTimeout;
+        MAX_KEEP_ALIVE_REQUESTS = maxKeepAliveRequests;
+        CACHE_CONTROL = cacheControl;
+        METRICS_PATH = metricsPath;
+        REJECTION_POLICY = rejectionPolicy;
+        HEADER_TIMEOUT = headerTimeout;
+        BODY_TIMEOUT = bodyTimeout;
+        MAX_HEADER_SIZE = maxHeaderSize;
+        MAX_BODY_SIZE = maxBodySize;
+        SHUTDOWN_TIMEOUT = shutdownTimeout;
+        if (resize) {
+            resizeWorkerPools();
+        }
+    }
+
+    // Printable ASCII and tabs only, so a configured value is sent as is and can't start another header
+    private static boolean isHeaderValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < 0x20 && c != '\t') || c >= 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads config.ini again and applies the settings that can change at runtime. Changes to the others
+     * are reported and take effect at the next restart, a malformed or empty file changes nothing.
+     */
+    public static void reloadConfig() {
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(CONFIG_FILE)) {
+            prop.load(input);
+        } catch (IOException ex) {
+            System.err.println("Error reloading configuration from config.ini: " + ex.getMessage());
+            return;
+        }
+        Properties previous = CONFIG;
+        if (prop.equals(previous)) {
+            return;
+        }
+        if (prop.isEmpty()) {
+            // Most likely caught halfway through being rewritten
+            System.err.println("config.ini is empty, keeping the current settings.");
+            return;
+        }
+        try {
+            applySettings(prop);
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid number format in configuration file, keeping the current settings.");
+            return;
+        }
+        CONFIG = prop;
+        Set<String> keys = new TreeSet<>(prop.stringPropertyNames());
+        keys.addAll(previous.stringPropertyNames());
+        for (String key : keys) {
+            if (!RELOADABLE_SETTINGS.contains(key) && !key.startsWith("cacheControl.")
+                    && !Objects.equals(prop.getProperty(key), previous.getProperty(key))) {
+                System.err.println("The " + key + " setting changed, it takes effect after a restart.");
+            }
+        }
+        METRICS.configReloaded();
+        System.out.println("Configuration reloaded from config.ini");
+    }
+
+    // Reloads the settings whenever config.ini is written or replaced, the directory is watched so
+    // editors that save through a new file and a rename are noticed too
+    private static void watchConfig() {
+        Path configFile = Paths.get(CONFIG_FILE).toAbsolutePath();
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            configFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Can't watch " + configFile + " for changes, it is only read at startup: " + e.getMessage());
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || configFile.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    if (changed) {
+                        Thread.sleep(CONFIG_SETTLE_MILLIS);
+                        reloadConfig();
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+        }, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Gives every worker pool its share of maxThreads. Threads above a smaller size exit once their
+    // current task is done, nothing is interrupted.
+    private static void resizeWorkerPools() {
+        for (int i = 0; i < WORKER_POOLS.size(); i++) {
+            resize(WORKER_POOLS.get(i), shareOf(MAX_THREADS, ACTIVE_SHARDS, i));
+        }
+        if (HTTP2_POOL != null) {
+            resize(HTTP2_POOL, Math.max(1, MAX_THREADS));
+        }
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int threads) {
+        // The core size may never exceed the maximum, so the order depends on the direction
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Graceful stop, run on SIGTERM or Ctrl-C. The listeners are closed first so a replacement server
+     * bound to the same ports gets every new connection. Requests in progress are answered, keep-alive
+     * connections are closed as soon as they are idle and HTTP/2 clients get a GOAWAY, for up to
+     * shutdownTimeout. Then the access log and the email journal are written out.
+     */
+    private static void shutdown() {
+        DRAINING = true;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        System.out.println("Shutting down, draining " + METRICS.getOpenConnections() + " open connections");
+        for (ServerSocketChannel listener : LISTENERS) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the server socket");
+            }
+        }
+        while (METRICS.getOpenConnections() > 0 && System.currentTimeMillis() < deadline) {
+            for (RequestHandler handler : OPEN_HANDLERS) {
+                handler.drain();
+            }
+            for (NioWebServer server : NIO_SERVERS) {
+                server.drain();
+            }
+            try {
+                Thread.sleep(DRAIN_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        long open = METRICS.getOpenConnections();
+        if (open > 0) {
+            System.err.println(open + " connections still open after " + SHUTDOWN_TIMEOUT + " ms, closing them.");
+        }
+        // Requests still running may store emails, the journal is closed once they are done
+        List<ExecutorService> executors = new ArrayList<>(WORKER_POOLS);
+        executors.addAll(UNBOUNDED_EXECUTORS);
+        if (HTTP2_POOL != null) {
+            executors.add(HTTP2_POOL);
+        }
+        executors.forEach(ExecutorService::shutdown);
+        boolean terminated = true;
+        for (ExecutorService executor : executors) {
+            try {
+                terminated &= executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                terminated = false;
+                break;
+            }
+        }
+        ACCESS_LOG.flush(Math.max(1000, deadline - System.currentTimeMillis()));
+        if (EMAIL_JOURNAL != null) {
+            if (!terminated) {
+                System.err.println("Requests still running after " + SHUTDOWN_TIMEOUT + " ms, emails they store from now on are not persisted.");
+            }
+            try {
+                // Appends already under way finish first, later ones are refused
+                EMAIL_JOURNAL.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the email journal: " + e.getMessage());
+            }
+        }
+        System.out.println("Server stopped");
+    }
+
+    // Loads the server certificate and key, returns null (HTTPS off) when the keystore can't be used.
+    // Sessions are cached for resumption by session ID and, unless tlsSessionTickets is false, also
+    // handed to clients as encrypted tickets so resuming doesn't depend on the cache at all.
+    private static SSLContext createTlsContext(String keystore, String password, String type,
+                                               int sessionCacheSize, int sessionTimeout, boolean sessionTickets) {
+        if (!sessionTickets) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "false");
+        }
+        try (InputStream input = new FileInputStream(keystore)) {
+            char[] secret = password.toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(type);
+            keyStore.load(input, secret);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, secret);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Error loading the TLS keystore " + keystore + ": " + e.getMessage());
+            System.err.println("HTTPS is disabled.");
+            return null;
+        }
+    }
+
+    // "adaptive" follows latency starting from the pool size, a number is a fixed cap, "off" never sheds
+    private static ConcurrencyLimiter createConcurrencyLimiter(String mode, int maxThreads, int min, int max, long latencyTarget) {
+        if ("off".equalsIgnoreCase(mode)) {
+            return ConcurrencyLimiter.unlimited();
+        }
+        if ("adaptive".equalsIgnoreCase(mode)) {
+            return new ConcurrencyLimiter(true, maxThreads, min, max, latencyTarget);
+        }
+        try {
+            int fixed = Integer.parseInt(mode);
+            return new ConcurrencyLimiter(false, fixed, fixed, fixed, latencyTarget);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid concurrencyLimit " + mode + ", using adaptive.");
+            return new ConcurrencyLimiter(true, maxThreads, min, max, latencyTarget);
+        }
     }
 
     public static void startServer() {
-        // Create a thread pool with a MAX_THREADS number of threads
-        ExecutorService threadPool = Executors.newFixedThreadPool(MAX_THREADS);
+        boolean nio = "nio".equalsIgnoreCase(ENGINE);
+        int shards = Math.max(1, SHARDS);
+        // Several shards share their ports, also with a new server process started to replace this one, which
+        // takes over new connections while this one drains. A single listener keeps its port to itself, so a
+        // second instance started by mistake fails to bind instead of silently taking part of the traffic.
+        boolean reusePort = shards > 1 && supportsReusePort();
+        if (shards > 1 && !reusePort) {
+            System.err.println("SO_REUSEPORT is not supported on this platform, using a single listener.");
+            shards = 1;
+        }
+        if (shards > MAX_THREADS) {
+            System.err.println("shards is above maxThreads, using " + Math.max(1, MAX_THREADS) + " shards.");
+            shards = Math.max(1, MAX_THREADS);
+        }
+        ACTIVE_SHARDS = shards;
+        // Bounds the connections being served or waiting for a thread over all shards, an accept loop
+        // blocks once the limit is reached and further clients wait in the TCP backlog
+        Semaphore admission = new Semaphore(MAX_CONNECTIONS);
+
+        List<Thread> acceptors = new ArrayList<>();
+        int started = 0;
+        for (int i = 0; i < shards; i++) {
+            ServerSocketChannel serverSocket;
+            ServerSocketChannel tlsServerSocket = null;
+            try {
+                serverSocket = openListener(PORT, reusePort);
+            } catch (IOException e) {
+                System.err.println("Error starting server on port " + PORT);
+                break;
+            }
+            if (TLS_PORT > 0) {
+                try {
+                    // Every shard also listens for HTTPS, served by the same loops or pool as its plain connections
+                    tlsServerSocket = openListener(TLS_PORT, reusePort);
+                } catch (IOException e) {
+                    System.err.println("Error starting HTTPS on port " + TLS_PORT);
+                }
+            }
+            LISTENERS.add(serverSocket);
+            if (tlsServerSocket != null) {
+                LISTENERS.add(tlsServerSocket);
+            }
+            Metrics.Shard shardMetrics = METRICS.addShard();
+            String name = "shard-" + i;
+            started++;
+            ServerSocketChannel tlsListener = tlsServerSocket;
+            // maxThreads, selectorThreads and maxQueuedConnections are totals, split over the shards
+            int threads = shareOf(MAX_THREADS, shards, i);
+            int queued = MAX_QUEUED_CONNECTIONS > 0 ? shareOf(MAX_QUEUED_CONNECTIONS, shards, i) : 0;
+            if (nio) {
+                NioWebServer server = new NioWebServer(shareOf(SELECTOR_THREADS, shards, i), threads, queued,
+                        shardMetrics, name);
+                NIO_SERVERS.add(server);
+                acceptors.add(startThread(() -> server.start(serverSocket, tlsListener), name + "-acceptor"));
+            } else {
+                ExecutorService threadPool = createConnectionExecutor(threads, queued, name);
+                shardMetrics.setExecutor(threadPool);
+                acceptors.add(startThread(() -> acceptConnections(serverSocket, false, threadPool, admission, shardMetrics),
+                        name + "-acceptor"));
+                if (tlsListener != null) {
+                    acceptors.add(startThread(() -> acceptConnections(tlsListener, true, threadPool, admission, shardMetrics),
+                            name + "-tls-acceptor"));
+                }
+            }
+        }
+        if (started == 0) {
+            return;
+        }
+        System.out.println("Server listening on port " + PORT + (TLS_PORT > 0 ? ", HTTPS on port " + TLS_PORT : "")
+                + " (" + (nio ? "nio" : "blocking") + ", " + started + (started == 1 ? " shard)" : " shards)"));
+        Runtime.getRuntime().addShutdownHook(new Thread(MultiThreadedWebServer::shutdown, "shutdown"));
+        if (CONFIG_RELOAD) {
+            watchConfig();
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Thread startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Opened through a channel so accepted sockets expose a SocketChannel for zero-copy file sends.
+    // Shards each bind their own listener to the port and the kernel spreads new connections over them.
+    private static ServerSocketChannel openListener(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        if (reusePort) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
 
+    // The accept loop of one blocking shard, its connections are served by its own thread pool.
+    // TLS connections first go through the handshake pool, a worker only gets them once they are encrypted.
+    private static void acceptConnections(ServerSocketChannel serverSocket, boolean tls, ExecutorService threadPool,
+                                          Semaphore admission, Metrics.Shard shardMetrics) {
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
-            System.out.println("Server listening on port " + PORT);
             while (true) {
                 try{
-                    Socket clientSocket = serverSocket.accept();
-                    threadPool.submit(new RequestHandler(clientSocket));
+                    admission.acquireUninterruptibly();
+                    SocketChannel clientChannel = serverSocket.accept();
+                    try {
+                        // Heads, chunks and file regions are separate writes, don't let Nagle hold them back
+                        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    } catch (IOException e) {
+                        admission.release();
+                        closeQuietly(clientChannel);
+                        continue;
+                    }
+                    shardMetrics.connectionOpened();
+                    if (tls) {
+                        handshake(clientChannel, threadPool, admission, shardMetrics);
+                    } else {
+                        dispatch(clientChannel, null, threadPool, admission, shardMetrics);
+                    }
                 } catch (IOException e) {
+                    admission.release();
+                    if (!serverSocket.isOpen()) {
+                        // Closed by the shutdown, connections already accepted are drained
+                        return;
+                    }
                     System.err.println("Error accepting connection from client");
-                    serverSocket.close();
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Error starting server on port " + PORT);
         } finally {
             threadPool.shutdown();
         }
     }
 
+    // Runs the TLS handshake on the handshake pool, then hands the connection to the shard's workers.
+    // The handshake has tlsHandshakeTimeout in all, however its records are spread out.
+    private static void handshake(SocketChannel clientChannel, ExecutorService threadPool,
+                                  Semaphore admission, Metrics.Shard shardMetrics) {
+        try {
+            TLS_HANDSHAKE_POOL.execute(() -> {
+                TlsChannel tlsChannel;
+                try {
+                    Socket socket = clientChannel.socket();
+                    // Read through the socket's stream so the read deadline applies to the handshake too
+                    HandshakeInput input = new HandshakeInput(socket, System.currentTimeMillis() + TLS_HANDSHAKE_TIMEOUT);
+                    tlsChannel = new TlsChannel(Channels.newChannel(input), clientChannel, newTlsEngine(), null);
+                    tlsChannel.handshake();
+                    input.handshakeDone();
+                } catch (IOException e) {
+                    shardMetrics.connectionClosed();
+                    admission.release();
+                    closeQuietly(clientChannel);
+                    return;
+                }
+                dispatch(clientChannel, tlsChannel, threadPool, admission, shardMetrics);
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many handshakes waiting, nothing can be answered before one is done
+            shardMetrics.taskRejected();
+            shardMetrics.connectionClosed();
+            admission.release();
+            closeQuietly(clientChannel);
+        }
+    }
+
+    private static void dispatch(SocketChannel clientChannel, TlsChannel tlsChannel, ExecutorService threadPool,
+                                 Semaphore admission, Metrics.Shard shardMetrics) {
+        RequestHandler handler = new RequestHandler(clientChannel.socket(), tlsChannel);
+        try {
+            threadPool.submit(() -> {
+                OPEN_HANDLERS.add(handler);
+                try {
+                    handler.run();
+                } finally {
+                    OPEN_HANDLERS.remove(handler);
+                    shardMetrics.connectionClosed();
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The queue is full: answered right here instead of waiting for a worker
+            shardMetrics.taskRejected();
+            shardMetrics.connectionClosed();
+            admission.release();
+            rejectConnection(clientChannel, tlsChannel);
+        }
+    }
+
+    // Sends the overload response (unless rejectionPolicy is close) and closes the connection.
+    // Whatever the client already sent is drained first so the close doesn't turn into a reset.
+    private static void rejectConnection(SocketChannel clientChannel, TlsChannel tlsChannel) {
+        try {
+            if (!"close".equalsIgnoreCase(REJECTION_POLICY)) {
+                ByteBuffer response = ByteBuffer.wrap(RequestHandler.overloadedResponse());
+                if (tlsChannel != null) {
+                    tlsChannel.write(response);
+                    tlsChannel.close();
+                } else {
+                    clientChannel.write(response);
+                }
+                clientChannel.socket().shutdownOutput();
+                InputStream input = clientChannel.socket().getInputStream();
+                input.skip(input.available());
+            }
+        } catch (IOException e) {
+            // The client is gone already
+        } finally {
+            closeQuietly(clientChannel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel clientChannel) {
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error while closing client socket");
+        }
+    }
+
+    /**
+     * A server-side engine for a new HTTPS connection, sessions come from the shared context's cache.
+     */
+    static SSLEngine newTlsEngine() {
+        SSLEngine engine = TLS_CONTEXT.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (TLS_PROTOCOLS != null) {
+            engine.setEnabledProtocols(TLS_PROTOCOLS);
+        }
+        if (HTTP2) {
+            // ALPN: clients that offer h2 get it, the others stay on HTTP/1.1
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    // Runs the delegated tasks of handshakes (key exchange and signatures) off the request workers and event loops
+    static ExecutorService getTlsHandshakePool() {
+        return TLS_HANDSHAKE_POOL;
+    }
+
+    public static boolean isHttp2Enabled() {
+        return HTTP2;
+    }
+
+    public static int getHttp2MaxConcurrentStreams() {
+        return HTTP2_MAX_CONCURRENT_STREAMS;
+    }
+
+    public static int getHttp2InitialWindowSize() {
+        return HTTP2_INITIAL_WINDOW_SIZE;
+    }
+
+    // How long a TLS handshake may take in all, from its first record to its last
+    static int getTlsHandshakeTimeout() {
+        return TLS_HANDSHAKE_TIMEOUT;
+    }
+
+    // Serves the streams of HTTP/2 connections on the blocking engine
+    static ExecutorService getHttp2Pool() {
+        return HTTP2_POOL;
+    }
+
+    // Shard i's part of a total split over shards, the first ones take the remainder. Every shard gets at least 1.
+    static int shareOf(int total, int shards, int i) {
+        return Math.max(1, total / shards + (i < total % shards ? 1 : 0));
+    }
+
+    // Pools queue at most queued tasks, further ones are rejected. 0 queues without limit.
+    // Threads are named after the shard they belong to.
+    static ThreadPoolExecutor createBoundedPool(int threads, int queued, String name) {
+        BlockingQueue<Runnable> queue = queued > 0 ? new ArrayBlockingQueue<>(queued) : new LinkedBlockingQueue<>();
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+                task -> new Thread(task, name + "-worker-" + count.incrementAndGet()));
+    }
+
+    private static ExecutorService createConnectionExecutor(int threads, int queued, String name) {
+        if ("virtual".equalsIgnoreCase(EXECUTOR)) {
+            // Virtual threads need JDK 21+, looked up reflectively so the server still builds on older JDKs
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                System.out.println("Using a virtual thread per connection on " + name);
+                UNBOUNDED_EXECUTORS.add(executor);
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JDK, using a cached thread pool instead.");
+                ExecutorService executor = Executors.newCachedThreadPool();
+                UNBOUNDED_EXECUTORS.add(executor);
+                return executor;
+            }
+        }
+        // Create a thread pool with this shard's share of MAX_THREADS
+        return createWorkerPool(threads, queued, name);
+    }
+
+    // A shard's worker pool, resized with maxThreads when the configuration is reloaded
+    static ThreadPoolExecutor createWorkerPool(int threads, int queued, String name) {
+        ThreadPoolExecutor pool = createBoundedPool(threads, queued, name);
+        WORKER_POOLS.add(pool);
+        return pool;
+    }
+
     public static String getRootDirectory() {
-        return ROOT_DIRECTORY;
+        return SITE.rootDirectory;
     }
 
     public static String getDefaultPage() {
-        return DEFAULT_PAGE;
+        return SITE.defaultPage;
+    }
+
+    public static int getKeepAliveTimeout() {
+        return KEEP_ALIVE_TIMEOUT;
+    }
+
+    public static int getMaxKeepAliveRequests() {
+        return MAX_KEEP_ALIVE_REQUESTS;
+    }
+
+    public static StaticFileCache getFileCache() {
+        return FILE_CACHE;
+    }
+
+    public static StaticFileIndex getFileIndex() {
+        return SITE.fileIndex;
+    }
+
+    public static long getZeroCopyThreshold() {
+        return ZERO_COPY_THRESHOLD;
+    }
+
+    // Returns the Cache-Control value for a file, or null to send none
+    public static String getCacheControl(Path filePath) {
+        String fileName = filePath.getFileName().toString().toLowerCase();
+        int dot = fileName.lastIndexOf('.');
+        String policy = dot < 0 ? null : CACHE_CONTROL.get(fileName.substring(dot + 1));
+        policy = policy != null ? policy : CACHE_CONTROL.get("default");
+        return policy == null || policy.isEmpty() ? null : policy;
+    }
+
+    public static ContentEncoder getContentEncoder() {
+        return CONTENT_ENCODER;
     }
 
-    public static List<HashMap<String, String>> getEmails() {
+    public static AccessLog getAccessLog() {
+        return ACCESS_LOG;
+    }
+
+    public static Metrics getMetrics() {
+        return METRICS;
+    }
+
+    // The reserved path the metrics are served on, or an empty string when they are not served
+    public static String getMetricsPath() {
+        return METRICS_PATH;
+    }
+
+    public static String getRejectionPolicy() {
+        return REJECTION_POLICY;
+    }
+
+    public static int getRetryAfter() {
+        return RETRY_AFTER;
+    }
+
+    // Milliseconds a request's head may take to arrive once its first byte is in
+    public static int getHeaderTimeout() {
+        return HEADER_TIMEOUT;
+    }
+
+    // Milliseconds a request's body may take to arrive once its head is in
+    public static int getBodyTimeout() {
+        return BODY_TIMEOUT;
+    }
+
+    public static int getMaxHeaderSize() {
+        return MAX_HEADER_SIZE;
+    }
+
+    public static int getMaxBodySize() {
+        return MAX_BODY_SIZE;
+    }
+
+    // Whether the server is shutting down, responses then close their connections
+    public static boolean isDraining() {
+        return DRAINING;
+    }
+
+    public static ConcurrencyLimiter getConcurrencyLimiter() {
+        return CONCURRENCY_LIMITER;
+    }
+
+    public static EmailStore getEmails() {
         return EMAILS;
     }
 
     public static void addEmail(HashMap<String, String> parameters) {
         String uuid = UUID.randomUUID().toString();
+        EmailStore.Email email = new EmailStore.Email(uuid, EmailStore.toFields(parameters));
+        // The store is updated before the journal, see EmailJournal
+        EMAILS.add(email);
+        if (EMAIL_JOURNAL != null) {
+            try {
+                EMAIL_JOURNAL.appendAdd(email);
+            } catch (IOException e) {
+                System.err.println("Error persisting email " + uuid + ": " + e.getMessage());
+            }
+        }
         parameters.put("uuid", uuid);
-        EMAILS.add(parameters);
     }
 
     public static boolean deleteEmail(String uuid) {
-        return EMAILS.removeIf(email -> email.get("uuid").equals(uuid));
+        if (!EMAILS.delete(uuid)) {
+            return false;
+        }
+        if (EMAIL_JOURNAL != null) {
+            try {
+                EMAIL_JOURNAL.appendDelete(uuid);
+            } catch (IOException e) {
+                System.err.println("Error persisting delete of email " + uuid + ": " + e.getMessage());
+            }
+        }
+        return true;
     }    
 }
@@ -0,0 +1,998 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking engine: event loops own the sockets and do all reads and writes,
+ * the worker pool only sees fully received requests. A slow or idle client costs
+ * a few buffers instead of a pool thread.
+ */
+public class NioWebServer {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Streams of an HTTP/2 connection wait once this much of its output is queued, until the socket takes it
+    private static final long HTTP2_QUEUE_LIMIT = 256 * 1024;
+    // An HTTP/1.1 response is handed to the loop in parts of this size, its handler waits while more than
+    // RESPONSE_QUEUE_LIMIT bytes of it are still unsent
+    private static final int RESPONSE_PART_SIZE = 64 * 1024;
+    private static final long RESPONSE_QUEUE_LIMIT = 256 * 1024;
+    // Idle connections and request deadlines are checked this often, not on every wakeup
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final String name;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workerPool;
+    private final Metrics.Shard metrics;
+
+    // One shard of the server: its own event loops and worker pool, named after the shard
+    public NioWebServer(int selectorThreads, int workerThreads, int queuedRequests, Metrics.Shard metrics, String name) {
+        this.name = name;
+        this.eventLoops = new EventLoop[Math.max(1, selectorThreads)];
+        this.workerPool = MultiThreadedWebServer.createWorkerPool(workerThreads, queuedRequests, name);
+        this.metrics = metrics;
+        metrics.setExecutor(workerPool);
+    }
+
+    /**
+     * Called repeatedly while the server shuts down, each loop closes its connections as they go idle.
+     */
+    public void drain() {
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.execute(loop::drain);
+            }
+        }
+    }
+
+    /**
+     * Serves the connections accepted on serverChannel, and HTTPS ones on tlsServerChannel unless it is
+     * null, until the shutdown closes them. Both are already bound.
+     */
+    public void start(ServerSocketChannel serverChannel, ServerSocketChannel tlsServerChannel) {
+        for (int i = 0; i < eventLoops.length; i++) {
+            try {
+                eventLoops[i] = new EventLoop();
+            } catch (IOException e) {
+                System.err.println("Error opening a selector: " + e.getMessage());
+                return;
+            }
+            Thread thread = new Thread(eventLoops[i], name + "-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        if (tlsServerChannel != null) {
+            Thread thread = new Thread(() -> accept(tlsServerChannel, true), name + "-tls-acceptor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        // The workers are left running, connections still open are drained by the shutdown
+        accept(serverChannel, false);
+    }
+
+    // Accepting stays blocking on this thread, connections are spread round-robin over the loops
+    private void accept(ServerSocketChannel serverChannel, boolean tls) {
+        try (serverChannel) {
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    eventLoops[next].register(channel, tls);
+                    next = (next + 1) % eventLoops.length;
+                } catch (IOException e) {
+                    if (!serverChannel.isOpen()) {
+                        return;
+                    }
+                    System.err.println("Error accepting connection from client");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing the server socket");
+        }
+    }
+
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // A TLS connection's handshake is run by the loop, its delegated tasks by the handshake pool
+        void register(SocketChannel channel, boolean tls) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    TlsChannel tlsChannel = tls ? new TlsChannel(channel, channel, MultiThreadedWebServer.newTlsEngine(),
+                            MultiThreadedWebServer.getTlsHandshakePool()) : null;
+                    Connection connection = new Connection(this, channel, tlsChannel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    metrics.connectionOpened();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Runs the task on the loop thread, used by workers to hand back responses
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(Math.max(1, nextSweep - System.currentTimeMillis()));
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("Error in event loop task: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (RuntimeException e) {
+                            // Only this connection is lost, the loop goes on serving the others
+                            System.err.println("Error on connection, closing it: " + e);
+                            connection.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        closeIdleConnections(now);
+                        nextSweep = now + SWEEP_INTERVAL;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error in event loop: " + e.getMessage());
+                }
+            }
+        }
+
+        void drain() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection == null || !key.isValid() || connection.closed) {
+                    continue;
+                }
+                try {
+                    connection.drain();
+                } catch (RuntimeException e) {
+                    System.err.println("Error on connection, closing it: " + e);
+                    connection.close();
+                }
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            long timeout = MultiThreadedWebServer.getKeepAliveTimeout();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                // Keys cancelled earlier in this iteration are still listed until the next select
+                if (connection == null || !key.isValid() || connection.closed || connection.inFlight) {
+                    continue;
+                }
+                try {
+                    sweep(connection, now, timeout);
+                } catch (RuntimeException e) {
+                    System.err.println("Error on connection, closing it: " + e);
+                    connection.close();
+                }
+            }
+        }
+
+        // Closes or answers a connection that has been idle or slow for too long
+        private void sweep(Connection connection, long now, long timeout) {
+            if (connection.http2 != null && !connection.http2.isIdle()) {
+                // Streams are being answered, the idle time starts once they are done
+                connection.lastActivity = now;
+            } else if (connection.tls != null && !connection.tls.isHandshakeDone()) {
+                // Nothing can be answered before the handshake is done
+                if (now - connection.openedAt > MultiThreadedWebServer.getTlsHandshakeTimeout()
+                        || now - connection.lastActivity > timeout) {
+                    connection.close();
+                }
+            } else if (connection.isPastDeadline(now)) {
+                connection.timeOut();
+            } else if (now - connection.lastActivity > timeout) {
+                connection.expire();
+            }
+        }
+    }
+
+    /**
+     * Per-socket state, only touched from its event loop thread.
+     */
+    private class Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        // Non-null on HTTPS connections, all reads and writes then go through it
+        private final TlsChannel tls;
+        private final WritableByteChannel output;
+        private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+        // Set once the connection opens with the HTTP/2 preface, requests then arrive as frames
+        private Http2Connection http2;
+        private Http2Transport http2Transport;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private HttpRequest pendingRequest;
+        private ChunkedBodyDecoder bodyDecoder;
+        private boolean inFlight;
+        private boolean responding;
+        // Set once the worker has handed over the end of the response, earlier parts may be written before
+        private boolean responseComplete;
+        private Response response;
+        private boolean closeAfterWrite;
+        private boolean closed;
+        private int requestCount;
+        private final long openedAt = System.currentTimeMillis();
+        private long lastActivity = openedAt;
+        // When the first byte of the request being received arrived, and when its head was complete
+        private long headStartedAt;
+        private long bodyStartedAt;
+
+        Connection(EventLoop loop, SocketChannel channel, TlsChannel tls) {
+            this.loop = loop;
+            this.channel = channel;
+            this.tls = tls;
+            this.output = tls != null ? tls : channel;
+            if (tls != null) {
+                tls.setTaskListener(() -> loop.execute(this::onTasksDone));
+            }
+        }
+
+        void onReadable() {
+            try {
+                int read;
+                if (tls != null) {
+                    read = readTls();
+                } else {
+                    if (!readBuffer.hasRemaining()) {
+                        readBuffer = grow(readBuffer);
+                    }
+                    read = channel.read(readBuffer);
+                }
+                if (read == -1) {
+                    if (pendingRequest != null && !inFlight && http2 == null) {
+                        // Closed partway through a body, the request is refused rather than served
+                        refuse(400, RequestHandler.truncatedResponse());
+                    } else {
+                        close();
+                    }
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                if (read > 0) {
+                    MultiThreadedWebServer.getMetrics().addBytesReceived(read);
+                    if (http2 != null) {
+                        receiveHttp2();
+                        return;
+                    }
+                    if (headStartedAt == 0 && pendingRequest == null) {
+                        headStartedAt = lastActivity;
+                    }
+                    if (!startHttp2()) {
+                        dispatchNext();
+                    }
+                }
+                if (tls != null && key.isValid() && http2 == null) {
+                    updateTlsInterest();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Decrypts everything available: records already read off the socket don't make it readable again
+        private int readTls() throws IOException {
+            int total = 0;
+            while (true) {
+                if (!readBuffer.hasRemaining()) {
+                    readBuffer = grow(readBuffer);
+                }
+                int read = tls.read(readBuffer);
+                if (read <= 0) {
+                    return total > 0 || read == 0 ? total : -1;
+                }
+                total += read;
+            }
+        }
+
+        // Nothing to do while the handshake pool works, handshake messages wait for the socket to take them
+        private void updateTlsInterest() {
+            if (tls.isTaskRunning()) {
+                key.interestOps(0);
+            } else if (!responding) {
+                int interest = inFlight ? 0 : SelectionKey.OP_READ;
+                key.interestOps(tls.hasPendingOutput() ? interest | SelectionKey.OP_WRITE : interest);
+            }
+        }
+
+        private void onTasksDone() {
+            if (!closed && key.isValid()) {
+                onReadable();
+            }
+        }
+
+        // A connection whose first bytes are the HTTP/2 preface switches to HTTP/2 for good, whether h2c with
+        // prior knowledge or h2 after ALPN. Returns true once switched, and while the bytes so far could
+        // still be the start of the preface.
+        private boolean startHttp2() {
+            if (requestCount > 0 || pendingRequest != null || !MultiThreadedWebServer.isHttp2Enabled()) {
+                return false;
+            }
+            byte[] preface = Http2Connection.PREFACE;
+            byte[] data = readBuffer.array();
+            int available = Math.min(readBuffer.position(), preface.length);
+            for (int i = 0; i < available; i++) {
+                if (data[i] != preface[i]) {
+                    return false;
+                }
+            }
+            if (available < preface.length) {
+                return true;
+            }
+            consume(preface.length);
+            headStartedAt = 0;
+            http2Transport = new Http2Transport();
+            http2 = new Http2Connection(http2Transport, workerPool);
+            key.interestOps(SelectionKey.OP_READ);
+            try {
+                http2.start();
+            } catch (IOException e) {
+                close();
+                return true;
+            }
+            receiveHttp2();
+            return true;
+        }
+
+        // Feeds what was read to the HTTP/2 connection, which answers a protocol error with GOAWAY
+        private void receiveHttp2() {
+            boolean open = http2.receive(readBuffer.array(), 0, readBuffer.position());
+            readBuffer.clear();
+            if (!open) {
+                // Closed once the GOAWAY is written
+                key.interestOps(0);
+                closeAfterWrite = true;
+                flushHttp2();
+            }
+        }
+
+        // Writes queued frames, staying readable throughout: streams are answered while others arrive
+        private void flushHttp2() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    FrameWrite frames = (FrameWrite) pendingWrites.peek();
+                    if (!frames.writeTo(output)) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingWrites.poll();
+                    http2Transport.sent(frames.size);
+                }
+                if (tls != null && !tls.flush()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (closeAfterWrite && http2Transport.isDrained()) {
+                    close();
+                    return;
+                }
+                // Reading stops once the connection is closing, the frames still to come are the last ones
+                key.interestOps(closeAfterWrite ? 0 : SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Closes an idle connection, an HTTP/2 one after telling the client with GOAWAY
+        void expire() {
+            if (http2 == null || closeAfterWrite) {
+                close();
+                return;
+            }
+            closeAfterWrite = true;
+            lastActivity = System.currentTimeMillis();
+            http2.goAway();
+        }
+
+        // While the server shuts down: closes the connection if it is between two requests. A request being
+        // received or answered is finished first, its response closes the connection. An HTTP/2 client
+        // is sent GOAWAY, the connection is closed once its open streams are answered.
+        void drain() {
+            if (closed || inFlight) {
+                return;
+            }
+            if (http2 == null) {
+                // A new connection's first request may be on its way, it is left to keepAliveTimeout
+                if (requestCount > 0 && headStartedAt == 0 && pendingRequest == null) {
+                    close();
+                }
+                return;
+            }
+            if (!http2.isGoingAway()) {
+                http2.goAway();
+            }
+            if (http2.isIdle() && !closeAfterWrite) {
+                // Closed by flushHttp2 once the GOAWAY is written
+                closeAfterWrite = true;
+                flushHttp2();
+            }
+        }
+
+        // Hands the next complete request in the buffer to the worker pool.
+        // Only one request per connection is in flight so pipelined responses keep their order.
+        private void dispatchNext() {
+            if (inFlight || !key.isValid()) {
+                return;
+            }
+            HttpRequest request = takeRequest();
+            if (request == null) {
+                return;
+            }
+            inFlight = true;
+            requestCount++;
+            request.setReceivedAt(System.nanoTime());
+            headStartedAt = readBuffer.position() > 0 ? System.currentTimeMillis() : 0;
+            bodyStartedAt = 0;
+            // Stop reading while the request is processed, the rest stays buffered
+            key.interestOps(0);
+            int count = requestCount;
+            Response response = new Response();
+            this.response = response;
+            try {
+                workerPool.execute(() -> process(request, count, response));
+            } catch (RejectedExecutionException e) {
+                // The queue is full: answered from the loop instead of waiting for a worker
+                metrics.taskRejected();
+                if ("close".equalsIgnoreCase(MultiThreadedWebServer.getRejectionPolicy())) {
+                    close();
+                } else {
+                    write(respond(RequestHandler.overloadedResponse()), true);
+                }
+            }
+        }
+
+        private void process(HttpRequest httpRequest, int count, Response response) {
+            boolean keepAlive = false;
+            try {
+                keepAlive = RequestHandler.shouldKeepAlive(httpRequest, count);
+                RequestHandler handler = new RequestHandler(response);
+                keepAlive = handler.serve(httpRequest, keepAlive);
+            } catch (IOException | RuntimeException e) {
+                // The connection is closed once what was written goes out, never left waiting
+                System.out.println("Error while handling request");
+                keepAlive = false;
+            }
+            boolean close = !keepAlive;
+            List<PendingWrite> parts = response.finish();
+            loop.execute(() -> write(parts, close));
+        }
+
+        // Part of a response the worker is still writing, sent as the socket takes it
+        private void writePart(List<PendingWrite> parts) {
+            if (closed) {
+                parts.forEach(PendingWrite::release);
+                return;
+            }
+            pendingWrites.addAll(parts);
+            responding = true;
+            onWritable();
+        }
+
+        // A request whose head or body is still arriving after headerTimeout or bodyTimeout
+        boolean isPastDeadline(long now) {
+            if (bodyStartedAt != 0) {
+                return now - bodyStartedAt > MultiThreadedWebServer.getBodyTimeout();
+            }
+            return headStartedAt != 0 && now - headStartedAt > MultiThreadedWebServer.getHeaderTimeout();
+        }
+
+        // Answers 408 and closes, the slow request is never handed to a worker
+        void timeOut() {
+            refuse(408, RequestHandler.timeoutResponse());
+        }
+
+        // Answers the request being read without serving it, then closes
+        private void refuse(int status, byte[] response) {
+            String method = pendingRequest != null ? pendingRequest.getMethod() : null;
+            MultiThreadedWebServer.getMetrics().recordRequest(method, status, Metrics.Route.OTHER, 0);
+            inFlight = true;
+            key.interestOps(0);
+            write(respond(response), true);
+        }
+
+        private List<PendingWrite> respond(byte[] response) {
+            List<PendingWrite> parts = new ArrayList<>();
+            parts.add(new BufferWrite(ByteBuffer.wrap(response)));
+            MultiThreadedWebServer.getMetrics().addBytesSent(response.length);
+            return parts;
+        }
+
+        private void write(List<PendingWrite> parts, boolean close) {
+            pendingWrites.addAll(parts);
+            responding = true;
+            responseComplete = true;
+            closeAfterWrite = close;
+            if (!key.isValid()) {
+                close();
+                return;
+            }
+            onWritable();
+        }
+
+        void onWritable() {
+            if (http2 != null) {
+                flushHttp2();
+                return;
+            }
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    if (!pendingWrites.peek().writeTo(output)) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingWrites.poll().release();
+                }
+                if (tls != null && !tls.flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (!responding) {
+                    // Only handshake messages were waiting
+                    updateTlsInterest();
+                    return;
+                }
+                if (!responseComplete) {
+                    // Everything so far is sent, the worker is still writing the rest
+                    key.interestOps(0);
+                    return;
+                }
+                responding = false;
+                responseComplete = false;
+                response = null;
+                lastActivity = System.currentTimeMillis();
+                if (closeAfterWrite) {
+                    close();
+                    return;
+                }
+                inFlight = false;
+                key.interestOps(SelectionKey.OP_READ);
+                dispatchNext();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Queues frames from any thread, they are written by the loop in the order queued.
+         * Streams wait in awaitWritable while more than HTTP2_QUEUE_LIMIT bytes are still unsent.
+         */
+        private class Http2Transport implements Http2Connection.Transport {
+            private long queued;
+            private boolean closed;
+
+            @Override
+            public void send(ByteBuffer[] frames) {
+                FrameWrite write = new FrameWrite(frames);
+                synchronized (this) {
+                    queued += write.size;
+                }
+                loop.execute(() -> {
+                    if (Connection.this.closed) {
+                        sent(write.size);
+                        return;
+                    }
+                    pendingWrites.add(write);
+                    flushHttp2();
+                });
+            }
+
+            @Override
+            public synchronized void awaitWritable() throws IOException {
+                while (queued > HTTP2_QUEUE_LIMIT && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the socket");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            }
+
+            // Whether everything sent so far has been written, frames still on their way to the loop included
+            synchronized boolean isDrained() {
+                return queued == 0;
+            }
+
+            synchronized void sent(long size) {
+                queued -= size;
+                if (queued <= HTTP2_QUEUE_LIMIT) {
+                    notifyAll();
+                }
+            }
+
+            synchronized void closed() {
+                closed = true;
+                notifyAll();
+            }
+        }
+
+        // Removes one full request (headers plus Content-Length or chunked body) from the read buffer.
+        // The head is parsed as soon as it is complete, the request then waits here for its body.
+        private HttpRequest takeRequest() {
+            byte[] data = readBuffer.array();
+            if (pendingRequest == null) {
+                int start = HttpRequestParser.skipEmptyLines(data, 0, readBuffer.position());
+                int headEnd = HttpRequestParser.findHeadEnd(data, start, readBuffer.position());
+                if (headEnd < 0) {
+                    if (readBuffer.position() - start >= MultiThreadedWebServer.getMaxHeaderSize()) {
+                        // Answered with 431 by the handler, the connection is closed afterwards
+                        readBuffer.clear();
+                        return HttpRequest.rejected(431);
+                    }
+                    consume(start);
+                    return null;
+                }
+                pendingRequest = new HttpRequest(Arrays.copyOfRange(data, start, headEnd), headEnd - start);
+                consume(headEnd);
+                bodyStartedAt = System.currentTimeMillis();
+                if (!pendingRequest.enforceBodyLimit(MultiThreadedWebServer.getMaxBodySize())) {
+                    // Answered with 413 without reading the body, the connection is closed afterwards
+                    HttpRequest request = pendingRequest;
+                    pendingRequest = null;
+                    return request;
+                }
+            }
+
+            if (pendingRequest.isChunked()) {
+                if (bodyDecoder == null) {
+                    bodyDecoder = new ChunkedBodyDecoder(MultiThreadedWebServer.getMaxBodySize());
+                }
+                consume(bodyDecoder.decode(data, 0, readBuffer.position()));
+                if (bodyDecoder.isTooLarge()) {
+                    pendingRequest.reject(413);
+                } else if (bodyDecoder.isFailed()) {
+                    // Answered with 400 by the handler, the connection is closed afterwards
+                    pendingRequest.setCorrupted(true);
+                } else if (!bodyDecoder.isDone()) {
+                    return null;
+                } else {
+                    pendingRequest.setBody(bodyDecoder.getBody(), 0, bodyDecoder.getLength());
+                }
+                bodyDecoder = null;
+                HttpRequest request = pendingRequest;
+                pendingRequest = null;
+                return request;
+            }
+
+            int contentLength = pendingRequest.getContentLength();
+            if (readBuffer.position() < contentLength) {
+                if (contentLength > readBuffer.capacity()) {
+                    readBuffer = grow(readBuffer, contentLength);
+                }
+                return null;
+            }
+            if (contentLength > 0) {
+                pendingRequest.setBody(Arrays.copyOf(data, contentLength), 0, contentLength);
+                consume(contentLength);
+            }
+            HttpRequest request = pendingRequest;
+            pendingRequest = null;
+            return request;
+        }
+
+        private void consume(int count) {
+            if (count > 0) {
+                readBuffer.flip();
+                readBuffer.position(count);
+                readBuffer.compact();
+            }
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                metrics.connectionClosed();
+            }
+            key.cancel();
+            if (tls != null) {
+                tls.close();
+            }
+            closeQuietly(channel);
+            if (http2 != null) {
+                http2.close();
+                http2Transport.closed();
+            }
+            PendingWrite pending;
+            while ((pending = pendingWrites.poll()) != null) {
+                pending.release();
+            }
+            if (response != null) {
+                response.closed();
+            }
+        }
+
+        /**
+         * Collects what the handler writes, with large files kept as file regions instead of bytes.
+         * Bytes are handed to the loop once RESPONSE_PART_SIZE of them are buffered, so a small response
+         * still goes out as one write while a large one is never held whole in memory.
+         */
+        private class Response extends ByteArrayOutputStream implements GatheringByteChannel, RequestHandler.FileRegionWriter {
+            private List<PendingWrite> parts = new ArrayList<>();
+            // Bytes handed to the loop and not yet written, guarded by this
+            private long queued;
+            private boolean closed;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                int length = source.remaining();
+                if (source.hasArray()) {
+                    write(source.array(), source.arrayOffset() + source.position(), length);
+                    source.position(source.limit());
+                } else {
+                    if (count + length > buf.length) {
+                        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+                    }
+                    source.get(buf, count, length);
+                    count += length;
+                }
+                if (size() >= RESPONSE_PART_SIZE) {
+                    flushBytes();
+                    sendParts();
+                }
+                return length;
+            }
+
+            @Override
+            public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+                long written = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    written += write(sources[i]);
+                }
+                return written;
+            }
+
+            @Override
+            public long write(ByteBuffer[] sources) throws IOException {
+                return write(sources, 0, sources.length);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void writeFile(Path filePath, long position, long count) throws IOException {
+                flushBytes();
+                parts.add(new FileWrite(FileChannel.open(filePath, StandardOpenOption.READ), position, count));
+            }
+
+            private void flushBytes() {
+                if (size() > 0) {
+                    int size = size();
+                    synchronized (this) {
+                        queued += size;
+                    }
+                    parts.add(new BufferWrite(ByteBuffer.wrap(toByteArray()), this));
+                    reset();
+                }
+            }
+
+            // Hands the parts so far to the loop, then waits until the socket has taken enough of them
+            private void sendParts() throws IOException {
+                List<PendingWrite> ready = parts;
+                parts = new ArrayList<>();
+                loop.execute(() -> writePart(ready));
+                synchronized (this) {
+                    while (queued > RESPONSE_QUEUE_LIMIT && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting for the socket");
+                        }
+                    }
+                    if (closed) {
+                        throw new IOException("Connection closed");
+                    }
+                }
+            }
+
+            // The rest of the response, to be written after the parts already sent
+            List<PendingWrite> finish() {
+                flushBytes();
+                return parts;
+            }
+
+            synchronized void sent(long size) {
+                queued -= size;
+                if (queued <= RESPONSE_QUEUE_LIMIT) {
+                    notifyAll();
+                }
+            }
+
+            synchronized void closed() {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A piece of a response waiting to be written, writeTo returns true once it is fully sent.
+     */
+    private interface PendingWrite {
+        boolean writeTo(WritableByteChannel channel) throws IOException;
+
+        default void release() {
+        }
+    }
+
+    private static class BufferWrite implements PendingWrite {
+        private final ByteBuffer buffer;
+        // The streamed response it belongs to, told once the bytes are written or dropped
+        private final Connection.Response response;
+
+        BufferWrite(ByteBuffer buffer) {
+            this(buffer, null);
+        }
+
+        BufferWrite(ByteBuffer buffer, Connection.Response response) {
+            this.buffer = buffer;
+            this.response = response;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+            if (response != null) {
+                response.sent(buffer.capacity());
+            }
+        }
+    }
+
+    // Frames of an HTTP/2 connection, queued together so a header block is never split by other frames
+    private static class FrameWrite implements PendingWrite {
+        private final ByteBuffer[] frames;
+        private final long size;
+
+        FrameWrite(ByteBuffer[] frames) {
+            this.frames = frames;
+            long size = 0;
+            for (ByteBuffer frame : frames) {
+                size += frame.remaining();
+            }
+            this.size = size;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            int next = 0;
+            while (next < frames.length) {
+                if (!frames[next].hasRemaining()) {
+                    next++;
+                    continue;
+                }
+                long written = channel instanceof GatheringByteChannel
+                        ? ((GatheringByteChannel) channel).write(frames, next, frames.length - next)
+                        : channel.write(frames[next]);
+                if (written == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Sent with transferTo as the socket becomes writable, the file never enters the heap
+    // (except on HTTPS connections, where it has to pass through the TLS engine to be encrypted)
+    private static class FileWrite implements PendingWrite {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        FileWrite(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File shrank while sending");
+                    }
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing file");
+            }
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        return grow(buffer, buffer.capacity() * 2);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error while closing client socket");
+        }
+    }
+}
@@ -1,27 +1,197 @@
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
 
 public class RequestHandler implements Runnable {
 
+    /**
+     * Implemented by outputs that can send a file region straight to the socket,
+     * so large files never pass through the heap.
+     */
+    public interface FileRegionWriter {
+        void writeFile(Path filePath, long position, long count) throws IOException;
+    }
+
+    private static final byte[] NO_CONTENT = new byte[0];
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final String MULTIPART_BOUNDARY = UUID.randomUUID().toString().replace("-", "");
+    private static final String MULTIPART_CONTENT_TYPE = "multipart/byteranges; boundary=" + MULTIPART_BOUNDARY;
+    private static final byte[] MULTIPART_END = ("--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+    // File extension -> content type
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+    }
+
+    private static byte[] overloadedResponse;
+    private static byte[] timeoutResponse;
+    private static byte[] truncatedResponse;
+
     private Socket clientSocket;
+    private TlsChannel tlsChannel;
+    // What drain looks at from the shutdown thread, set once the connection is being read
+    private volatile HttpRequestParser parser;
+    private volatile Http2Connection http2;
+    private long acceptedAt;
+    private ResponseWriter writer;
+    private boolean keepAlive;
+    private ChunkedOutputStream chunkedOutput;
+    private int responseStatus;
+    private long responseBytes;
 
     public RequestHandler(Socket clientSocket) {
+        this(clientSocket, null);
+    }
+
+    // An HTTPS connection whose handshake is done, requests and responses go through tlsChannel
+    public RequestHandler(Socket clientSocket, TlsChannel tlsChannel) {
         this.clientSocket = clientSocket;
+        this.tlsChannel = tlsChannel;
+        this.acceptedAt = System.nanoTime();
+    }
+
+    // Used by engines that do their own socket I/O: the response is written to channel
+    public RequestHandler(GatheringByteChannel channel) {
+        this.writer = new ResponseWriter(channel);
+    }
+
+    public static boolean shouldKeepAlive(HttpRequest httpRequest, int requestCount) {
+        return !httpRequest.getCorrupted() && httpRequest.isKeepAlive()
+                && requestCount < MultiThreadedWebServer.getMaxKeepAliveRequests()
+                && !MultiThreadedWebServer.isDraining();
+    }
+
+    /**
+     * Called from the shutdown thread, repeatedly, while the server drains. A connection waiting for its
+     * next request is closed, one in the middle of a request finishes it (the response closes it).
+     * An HTTP/2 client is sent GOAWAY and the connection is closed once its open streams are answered.
+     */
+    public void drain() {
+        Http2Connection connection = http2;
+        if (connection != null) {
+            if (!connection.isGoingAway()) {
+                connection.goAway();
+            }
+            if (!connection.isIdle()) {
+                return;
+            }
+        } else if (parser == null || !parser.isIdle()) {
+            return;
+        }
+        try {
+            // The blocked read returns end of stream and the worker closes the connection
+            clientSocket.shutdownInput();
+        } catch (IOException e) {
+            // Closed already
+        }
+    }
+
+    /**
+     * The whole response to a connection rejected because the worker queue is full, sent by the
+     * acceptor or event loop without involving a worker.
+     */
+    public static byte[] overloadedResponse() {
+        if (overloadedResponse == null) {
+            overloadedResponse = ("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Retry-After: " + MultiThreadedWebServer.getRetryAfter() + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        return overloadedResponse;
+    }
+
+    // The whole response to a request that missed its read deadline, for engines that detect it outside a handler
+    public static byte[] timeoutResponse() {
+        if (timeoutResponse == null) {
+            timeoutResponse = ("HTTP/1.1 408 Request Timeout\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        return timeoutResponse;
+    }
+
+    // The whole response to a request whose body the client stopped sending, for engines that detect it outside a handler
+    public static byte[] truncatedResponse() {
+        if (truncatedResponse == null) {
+            truncatedResponse = ("HTTP/1.1 400 Bad Request\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        return truncatedResponse;
+    }
+
+    /**
+     * Writes the response for an already parsed request and returns whether the connection stays open,
+     * which it may not even when keepAlive was asked for, e.g. after a shed or failed request.
+     */
+    public boolean serve(HttpRequest httpRequest, boolean keepAlive) throws IOException {
+        long startTime = httpRequest.getReceivedAt() != 0 ? httpRequest.getReceivedAt() : System.nanoTime();
+        this.keepAlive = keepAlive;
+        responseStatus = 0;
+        responseBytes = 0;
+        ConcurrencyLimiter limiter = MultiThreadedWebServer.getConcurrencyLimiter();
+        boolean admitted = limiter.tryAcquire();
+        long servedFrom = System.nanoTime();
+        try {
+            if (admitted) {
+                handleRequest(httpRequest, writer);
+            } else {
+                shedResponse(writer);
+            }
+            return this.keepAlive;
+        } finally {
+            long now = System.nanoTime();
+            long duration = now - startTime;
+            if (admitted) {
+                // Only the time spent producing the response: neither the wait for a worker nor sending
+                // the body to a slow client or through HTTP/2 flow control says the server is overloaded
+                long headDoneAt = writer.getHeadDoneAt();
+                limiter.release((headDoneAt != 0 ? headDoneAt : now) - servedFrom);
+            }
+            MultiThreadedWebServer.getMetrics().recordRequest(httpRequest.getMethod(), responseStatus,
+                    Metrics.route(httpRequest, MultiThreadedWebServer.getMetricsPath()), duration);
+            MultiThreadedWebServer.getAccessLog().log(httpRequest.getMethod(), httpRequest.getPath(),
+                    responseStatus, responseBytes, duration);
+        }
     }
 
     @Override
     public void run() {
         try {
-            handleRequest();
+            handleConnection();
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection, just close it
         } catch (IOException e) {
             System.out.println("Error while handling request");
         } finally {
+            if (tlsChannel != null) {
+                tlsChannel.close();
+            }
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -30,16 +200,95 @@ public class RequestHandler implements Runnable {
         }
     }
 
-    private void handleRequest() throws IOException {
+    private void handleConnection() throws IOException {
+        // Serve requests off the same connection until the client or the limits close it.
+        // Pipelined requests are read in order from the same parser, so they are answered in order.
+        HttpRequestParser parser = tlsChannel != null
+                ? new HttpRequestParser(clientSocket, Channels.newInputStream(tlsChannel))
+                : new HttpRequestParser(clientSocket);
+        this.parser = parser;
+        // Time the connection spent waiting for this worker, counted in its first request's latency
+        long queued = System.nanoTime() - acceptedAt;
+        // Accepted through a ServerSocketChannel, so the socket has a channel for gathering writes
+        writer = new ResponseWriter(tlsChannel != null ? tlsChannel : clientSocket.getChannel());
+        int requestCount = 0;
+
+        if (MultiThreadedWebServer.isHttp2Enabled() && parser.startsWith(Http2Connection.PREFACE)) {
+            serveHttp2(parser);
+            return;
+        }
+
+        do {
+            HttpRequest httpRequest = parser.readRequest();
+            if (httpRequest.isEndOfStream()) {
+                return;
+            }
+            requestCount++;
+            httpRequest.setReceivedAt(System.nanoTime() - (requestCount == 1 ? queued : 0));
+            serve(httpRequest, shouldKeepAlive(httpRequest, requestCount));
+        } while (keepAlive && !MultiThreadedWebServer.isDraining());
+    }
+
+    // A connection that opened with the HTTP/2 preface, h2c with prior knowledge or h2 chosen through ALPN.
+    // This thread reads the frames until the client leaves or stays idle past keepAliveTimeout, the
+    // streams are served on the HTTP/2 pool and write their frames themselves.
+    private void serveHttp2(HttpRequestParser parser) throws IOException {
+        GatheringByteChannel output = tlsChannel != null ? tlsChannel : clientSocket.getChannel();
+        InputStream input = tlsChannel != null ? Channels.newInputStream(tlsChannel) : clientSocket.getInputStream();
+        Http2Connection connection = new Http2Connection(frames -> {
+            for (int i = 0; i < frames.length; ) {
+                if (frames[i].hasRemaining()) {
+                    output.write(frames, i, frames.length - i);
+                } else {
+                    i++;
+                }
+            }
+        }, MultiThreadedWebServer.getHttp2Pool());
+        http2 = connection;
+        try {
+            connection.start();
+            byte[] buffered = parser.takeBuffered();
+            if (!connection.receive(buffered, 0, buffered.length)) {
+                return;
+            }
+            byte[] buffer = new byte[16384];
+            while (true) {
+                int read;
+                try {
+                    clientSocket.setSoTimeout(MultiThreadedWebServer.getKeepAliveTimeout());
+                    read = input.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    if (connection.isIdle()) {
+                        connection.goAway();
+                        return;
+                    }
+                    continue;
+                }
+                if (read < 0) {
+                    return;
+                }
+                MultiThreadedWebServer.getMetrics().addBytesReceived(read);
+                if (!connection.receive(buffer, 0, read)) {
+                    return;
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void handleRequest(HttpRequest httpRequest, ResponseWriter writer) throws IOException {
         // handle incoming request
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))) {
+        try {
+            AccessLog accessLog = MultiThreadedWebServer.getAccessLog();
+            if (accessLog.isDebugEnabled()) {
+                accessLog.debug(httpRequest.getFullRequest() + "\n--------------------\n" + httpRequest.describeHeaders());
+            }
 
-            HttpRequest httpRequest = new HttpRequest(reader);
-            System.out.println(httpRequest.getFullRequest());
-            System.out.println("--------------------");
-            httpRequest.printHeaders();
-            System.out.println("--------------------");
+            if (httpRequest.getRejectStatus() != 0) {
+                rejectedResponse(httpRequest.getRejectStatus(), writer);
+                return;
+            }
 
             if(httpRequest.getCorrupted())
             {
@@ -47,7 +296,10 @@ public class RequestHandler implements Runnable {
                 return;
             }            
             
-            if ("GET".equals(httpRequest.getMethod()) || "HEAD".equals(httpRequest.getMethod())) {
+            if (("GET".equals(httpRequest.getMethod()) || "HEAD".equals(httpRequest.getMethod()))
+                    && httpRequest.getPath().equals(MultiThreadedWebServer.getMetricsPath())) {
+                handleMetricsRequest(httpRequest, writer);
+            } else if ("GET".equals(httpRequest.getMethod()) || "HEAD".equals(httpRequest.getMethod())) {
                 handleGetRequest(httpRequest, writer);
             } else if ("POST".equals(httpRequest.getMethod())) {
                 handlePostRequest(httpRequest, writer);
@@ -58,46 +310,250 @@ public class RequestHandler implements Runnable {
                 byte[] contentBytes = content.getBytes();
                 sendResponse(501, "Not Implemented", "text/html", contentBytes, writer, httpRequest);
             } else {
-                System.out.println("Bad Request");
+                MultiThreadedWebServer.getAccessLog().debug("Bad Request");
                 sendResponse(400, "Bad Request", "text/html", null, writer, httpRequest);
             } 
             
         } catch (Exception e) {
-            String content = "Internal Server Error";
+            keepAlive = false;
+            MultiThreadedWebServer.getAccessLog().warn("Error while handling request: " + e);
+            // A 500 can't follow a response that has started going out, the connection is just closed
+            if (writer.getHeadDoneAt() == 0) {
+                String content = "Internal Server Error";
+                byte[] contentBytes = content.getBytes();
+                sendResponse(500, "Internal Server Error", "text/html", contentBytes, writer, httpRequest);
+            }
+        }
+    }
+
+    private void handleGetRequest(HttpRequest httpRequest, ResponseWriter writer) throws IOException {
+        // One hash lookup, the index already knows whether the file exists and what version it is
+        StaticFileIndex.FileInfo file = MultiThreadedWebServer.getFileIndex().lookup(httpRequest.getPath());
+        if (file == null) {
+            String content = "Not Found";
             byte[] contentBytes = content.getBytes();
-            sendResponse(500, "Internal Server Error", "text/html", contentBytes, null, null);
-            System.out.println("Error while handling request");
+            sendResponse(404, "Not Found", "text/html", contentBytes, writer, httpRequest);
+            return;
+        }
+        Path filePath = file.getPath();
+
+        StaticFileCache.Entry cached;
+        try {
+            cached = MultiThreadedWebServer.getFileCache().get(filePath, file.getSize(), file.getLastModified());
+        } catch (IOException e) {
+            cached = null;
+        }
+        if (cached != null && isPlainRequest(httpRequest, cached.getContentType())) {
+            sendCached(httpRequest, writer, filePath, cached);
+        } else if (cached != null) {
+            serveStaticFile(httpRequest, writer, filePath, cached.getContentType(), cached.getContent().length,
+                    cached.getLastModified(), cached.getETag(), cached.getContent());
+        } else {
+            serveStaticFile(httpRequest, writer, filePath, file.getContentType(), file.getSize(),
+                    file.getLastModified(), file.getETag(), null);
         }
     }
 
-    private void handleGetRequest(HttpRequest httpRequest, BufferedWriter writer) throws IOException {
-        if(httpRequest.getMethod() == "HEAD") {
-            // Send only the headers
-            sendResponse(200, "OK", "text/html", null, writer, httpRequest);
+    // Answers a static file request, honouring If-None-Match/If-Modified-Since and Range/If-Range.
+    // content is the body when it is already in memory, otherwise the file is read or streamed as needed.
+    private void serveStaticFile(HttpRequest httpRequest, ResponseWriter writer, Path filePath, String contentType,
+                                 long size, long lastModified, String etag, byte[] content) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        ContentEncoder encoder = MultiThreadedWebServer.getContentEncoder();
+        if (encoder.isCompressible(contentType)) {
+            headers.append("Vary: Accept-Encoding\r\n");
+            // Ranges are always served from the identity encoding
+            String encoding = httpRequest.getHeader("Range") == null
+                    ? ContentEncoder.negotiate(httpRequest.getHeader("Accept-Encoding")) : null;
+            byte[] encoded = null;
+            if (ContentEncoder.GZIP.equals(encoding)) {
+                encoded = precompressed(filePath, lastModified);
+            }
+            if (encoding != null && encoded == null && encoder.shouldCompress(contentType, size)
+                    && (content != null || size < MultiThreadedWebServer.getZeroCopyThreshold())) {
+                if (content == null) {
+                    content = Files.readAllBytes(filePath);
+                }
+                encoded = encoder.getCompressed(filePath, lastModified, content, encoding);
+            }
+            if (encoded != null) {
+                headers.append("Content-Encoding: ").append(encoding).append("\r\n");
+                // Each encoding is its own representation with its own entity tag
+                etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+                content = encoded;
+                size = encoded.length;
+            }
+        }
+        appendValidators(headers, filePath, etag, lastModified);
+        if (isNotModified(httpRequest, etag, lastModified)) {
+            sendResponse(304, "Not Modified", contentType, null, headers.toString(), writer, httpRequest);
             return;
         }
-        String path = httpRequest.getPath();
+        headers.append("Accept-Ranges: bytes\r\n");
 
-        Path filePath = Paths.get(MultiThreadedWebServer.getRootDirectory(), path);
+        List<ByteRange> ranges = null;
+        if ("GET".equals(httpRequest.getMethod()) && rangeApplies(httpRequest, etag, lastModified)) {
+            ranges = ByteRange.parse(httpRequest.getHeader("Range"), size);
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            headers.append("Content-Range: bytes */").append(size).append("\r\n");
+            sendResponse(416, "Range Not Satisfiable", "text/plain", null, headers.toString(), writer, httpRequest);
+            return;
+        }
+        if (content == null && size < MultiThreadedWebServer.getZeroCopyThreshold()) {
+            content = Files.readAllBytes(filePath);
+            size = content.length;
+        }
 
-        if (Files.exists(filePath) && !Files.isDirectory(filePath)) {
-            try {
-                byte[] fileContent = Files.readAllBytes(filePath);
-                sendResponse(200, "OK", determineContentType(filePath), fileContent, writer, httpRequest);
-            } catch (IOException e) {
-                String content = "Internal Server Error";
-                byte[] contentBytes = content.getBytes();
-                sendResponse(500, "Internal Server Error", "text/html", contentBytes, writer, httpRequest);
-                System.out.println("Error while handling request");
+        if (ranges == null) {
+            if (content != null) {
+                sendResponse(200, "OK", contentType, content, headers.toString(), writer, httpRequest);
+            } else {
+                sendFile(200, "OK", contentType, filePath, size, null, headers.toString(), writer, httpRequest);
             }
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            headers.append("Content-Range: ").append(range.contentRange(size)).append("\r\n");
+            if (content != null) {
+                byte[] part = Arrays.copyOfRange(content, (int) range.getStart(), (int) range.getEnd() + 1);
+                sendResponse(206, "Partial Content", contentType, part, headers.toString(), writer, httpRequest);
+            } else {
+                sendFile(206, "Partial Content", contentType, filePath, size, ranges, headers.toString(), writer, httpRequest);
+            }
+        } else if (content != null) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (ByteRange range : ranges) {
+                body.write(multipartHeader(contentType, range, size));
+                body.write(content, (int) range.getStart(), (int) range.getLength());
+                body.write(CRLF);
+            }
+            body.write(MULTIPART_END);
+            sendResponse(206, "Partial Content", MULTIPART_CONTENT_TYPE, body.toByteArray(), headers.toString(), writer, httpRequest);
         } else {
-            String content = "Not Found";
-            byte[] contentBytes = content.getBytes();
-            sendResponse(404, "Not Found", "text/html", contentBytes, writer, httpRequest);
+            sendFile(206, "Partial Content", contentType, filePath, size, ranges, headers.toString(), writer, httpRequest);
+        }
+    }
+
+    // No conditional or range headers and nothing to compress: the plain 200 that most hits are
+    private static boolean isPlainRequest(HttpRequest httpRequest, String contentType) {
+        if (httpRequest.getHeader("If-None-Match") != null || httpRequest.getHeader("If-Modified-Since") != null
+                || httpRequest.getHeader("Range") != null) {
+            return false;
+        }
+        return !MultiThreadedWebServer.getContentEncoder().isCompressible(contentType)
+                || ContentEncoder.negotiate(httpRequest.getHeader("Accept-Encoding")) == null;
+    }
+
+    // Sends a cached file with the header lines precomputed on its cache entry, so the response
+    // is built without formatting anything
+    private void sendCached(HttpRequest httpRequest, ResponseWriter writer, Path filePath, StaticFileCache.Entry cached) throws IOException {
+        byte[] headers = cached.getResponseHeaders();
+        if (headers == null) {
+            StringBuilder lines = new StringBuilder();
+            if (MultiThreadedWebServer.getContentEncoder().isCompressible(cached.getContentType())) {
+                lines.append("Vary: Accept-Encoding\r\n");
+            }
+            appendValidators(lines, filePath, cached.getETag(), cached.getLastModified());
+            lines.append("Accept-Ranges: bytes\r\n");
+            headers = lines.toString().getBytes(StandardCharsets.US_ASCII);
+            cached.setResponseHeaders(headers);
+        }
+        byte[] content = cached.getContent();
+        boolean head = httpRequest.getMethod().equalsIgnoreCase("HEAD");
+        // HEAD gets the length a GET would, just no body
+        writer.status(200, "OK").header(ResponseWriter.CONTENT_LENGTH, content.length);
+        writer.header(ResponseWriter.CONTENT_TYPE, cached.getContentType()).headers(headers).connection(keepAlive);
+        logHead(writer);
+        writer.send(content, 0, head ? 0 : content.length);
+        responseStatus = 200;
+        responseBytes = head ? 0 : content.length;
+    }
+
+    private static void appendValidators(StringBuilder headers, Path filePath, String etag, long lastModified) {
+        headers.append("ETag: ").append(etag).append("\r\n");
+        headers.append("Last-Modified: ").append(HTTP_DATE.format(Instant.ofEpochMilli(lastModified))).append("\r\n");
+        String cacheControl = MultiThreadedWebServer.getCacheControl(filePath);
+        if (cacheControl != null) {
+            headers.append("Cache-Control: ").append(cacheControl).append("\r\n");
+        }
+    }
+
+    private static void logHead(ResponseWriter writer) {
+        AccessLog accessLog = MultiThreadedWebServer.getAccessLog();
+        if (accessLog.isDebugEnabled()) {
+            accessLog.debug("Response Headers:\n" + writer.describeHead());
+        }
+    }
+
+    // A fresh gzip sibling (index.html.gz next to index.html), or null
+    private static byte[] precompressed(Path filePath, long lastModified) {
+        StaticFileIndex.FileInfo sibling = MultiThreadedWebServer.getFileIndex()
+                .lookup(filePath.resolveSibling(filePath.getFileName() + ".gz"));
+        if (sibling == null || sibling.getLastModified() < lastModified) {
+            return null;
+        }
+        try {
+            StaticFileCache.Entry entry = MultiThreadedWebServer.getFileCache()
+                    .get(sibling.getPath(), sibling.getSize(), sibling.getLastModified());
+            return entry != null ? entry.getContent() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isNotModified(HttpRequest httpRequest, String etag, long lastModified) {
+        // If-None-Match takes precedence, If-Modified-Since is only looked at without it
+        String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
         }
+        long since = parseHttpDate(httpRequest.getHeader("If-Modified-Since"));
+        return since >= 0 && lastModified / 1000 <= since / 1000;
     }
 
-    private void handlePostRequest(HttpRequest httpRequest, BufferedWriter writer) {
+    // A Range is only honoured when If-Range is absent or still names the current version
+    private static boolean rangeApplies(HttpRequest httpRequest, String etag, long lastModified) {
+        String ifRange = httpRequest.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison, a weak tag never matches
+            return ifRange.equals(etag);
+        }
+        long date = parseHttpDate(ifRange);
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    private static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] multipartHeader(String contentType, ByteRange range, long size) {
+        return ("--" + MULTIPART_BOUNDARY + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + range.contentRange(size) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void handlePostRequest(HttpRequest httpRequest, ResponseWriter writer) {
         try {
             HashMap<String, String> parameters = httpRequest.getParameters();
             String deleteStatus = ""; 
@@ -106,10 +562,10 @@ public class RequestHandler implements Runnable {
             if (httpRequest.getPath().equals("/delete")) {
                 Boolean deleted = MultiThreadedWebServer.deleteEmail(parameters.get("uuid-to-delete"));
                 if (deleted) {
-                    System.out.println("Deleted email with uuid: " + parameters.get("uuid-to-delete"));
+                    MultiThreadedWebServer.getAccessLog().debug("Deleted email with uuid: " + parameters.get("uuid-to-delete"));
                     deleteStatus = "Deleted email with uuid: " + parameters.get("uuid-to-delete");
                 } else {
-                    System.out.println("Email with uuid: " + parameters.get("uuid-to-delete") + " not found");
+                    MultiThreadedWebServer.getAccessLog().debug("Email with uuid: " + parameters.get("uuid-to-delete") + " not found");
                     deleteStatus = "Email with uuid: " + parameters.get("uuid-to-delete") + " not found";
                 }
             } else if (httpRequest.getPath().equals("/params_info.html")) {
@@ -119,135 +575,240 @@ public class RequestHandler implements Runnable {
                 return; 
             }
             
-            // Generate dynamic list of parameters and emails
-            StringBuilder dynamicList = new StringBuilder();
-            for (Map.Entry<String, String> entry : parameters.entrySet()) {
-                dynamicList.append("<li>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</li>");
-            }
-            
-            // Generate list of emails
-            StringBuilder emailList = new StringBuilder();
-            List<HashMap<String, String>> emails = MultiThreadedWebServer.getEmails();
-            for (HashMap<String, String> email : emails) {
-                for (Map.Entry<String, String> entry : email.entrySet()) {
-                    emailList.append("<li>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</li>");
+            // Render param_info.html in one pass, the email list is written entry by entry
+            String status = deleteStatus;
+            Map<String, Template.Slot> slots = new HashMap<>();
+            slots.put("DynamicList", out -> {
+                for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                    out.write("<li>").write(entry.getKey()).write(": ").write(entry.getValue()).write("</li>");
+                }
+            });
+            slots.put("EmailList", out -> writeEmailList(out));
+            slots.put("delete", out -> out.write(status));
+
+            Template template = Template.get(Paths.get(MultiThreadedWebServer.getRootDirectory(), "param_info.html"));
+            ContentEncoder encoder = MultiThreadedWebServer.getContentEncoder();
+            boolean compressible = encoder.isCompressible("text/html");
+            String encoding = compressible ? ContentEncoder.negotiate(httpRequest.getHeader("Accept-Encoding")) : null;
+            String headers = compressible ? "Vary: Accept-Encoding\r\n" : null;
+
+            if ("HTTP/1.1".equals(httpRequest.getVersion())) {
+                // The page is streamed as it is rendered, its length is never known up front
+                // so a compressible page is always compressed
+                if (encoding != null) {
+                    headers += "Content-Encoding: " + encoding + "\r\n";
                 }
-                emailList.append("<br>");
+                ChunkedOutputStream body = startChunkedResponse(200, "OK", "text/html", headers, writer);
+                OutputStream out = encoding != null ? encoder.encode(body, encoding) : body;
+                template.render(new Template.Output(out), slots);
+                out.close();
+                responseBytes = body.getWritten();
+                return;
             }
-            
-            // Read the html file and replace the dynamic list and email list
-            String htmlContent = new String(Files.readAllBytes(Paths.get(MultiThreadedWebServer.getRootDirectory(), "param_info.html")));
-            htmlContent = htmlContent.replace("{{DynamicList}}", dynamicList.toString());
-            htmlContent = htmlContent.replace("{{EmailList}}", emailList.toString());
-            htmlContent = htmlContent.replace("{{delete}}", deleteStatus);
-    
-            byte[] contentBytes = htmlContent.getBytes();
-    
-            sendResponse(200, "OK", "text/html", contentBytes, writer, httpRequest);
+
+            // HTTP/1.0 has no chunked encoding, the page is buffered to send its length
+            ByteArrayOutputStream html = new ByteArrayOutputStream(8192);
+            template.render(new Template.Output(html), slots);
+            byte[] contentBytes = html.toByteArray();
+            if (encoding != null && encoder.shouldCompress("text/html", contentBytes.length)) {
+                contentBytes = encoder.compress(contentBytes, encoding);
+                headers += "Content-Encoding: " + encoding + "\r\n";
+            }
+
+            sendResponse(200, "OK", "text/html", contentBytes, headers, writer, httpRequest);
         } catch (IOException e) {
-            System.out.println("Error while handling request");
+            // The response may be cut short, the connection can't be reused
+            keepAlive = false;
+            MultiThreadedWebServer.getAccessLog().warn("Error while handling request: " + e);
         }
     }    
 
-    private void handleTraceRequest(HttpRequest httpRequest, BufferedWriter writer) throws IOException {
+    private void writeEmailList(Template.Output out) throws IOException {
+        for (EmailStore.Email email : MultiThreadedWebServer.getEmails().snapshot()) {
+            out.write("<li>uuid: ").write(email.getUuid()).write("</li>");
+            for (int i = 0; i < email.getFieldCount(); i++) {
+                out.write("<li>").write(email.getFieldName(i)).write(": ").write(email.getFieldValue(i)).write("</li>");
+            }
+            out.write("<br>");
+        }
+    }
+
+    private void handleMetricsRequest(HttpRequest httpRequest, ResponseWriter writer) throws IOException {
+        String metrics = MultiThreadedWebServer.getMetrics().render(MultiThreadedWebServer.getFileCache(),
+                MultiThreadedWebServer.getContentEncoder());
+        sendResponse(200, "OK", "text/plain; version=0.0.4; charset=utf-8", metrics.getBytes(StandardCharsets.UTF_8),
+                "Cache-Control: no-store\r\n", writer, httpRequest);
+    }
+
+    private void handleTraceRequest(HttpRequest httpRequest, ResponseWriter writer) throws IOException {
         String content = httpRequest.getFullRequest();
         byte[] contentBytes = content.getBytes();
         sendResponse(200, "OK", "message/http", contentBytes, writer, httpRequest);
     }
     
-    private void sendResponse(int statusCode, String statusText, String contentType, byte[] content, BufferedWriter writer, HttpRequest httpRequest) throws IOException {
+    private void sendResponse(int statusCode, String statusText, String contentType, byte[] content, ResponseWriter writer, HttpRequest httpRequest) throws IOException {
+        sendResponse(statusCode, statusText, contentType, content, null, writer, httpRequest);
+    }
+
+    // extraHeaders are complete header lines, each ending with CRLF
+    private void sendResponse(int statusCode, String statusText, String contentType, byte[] content, String extraHeaders, ResponseWriter writer, HttpRequest httpRequest) throws IOException {
         try {
             if (httpRequest.getCorrupted()){
                 corruptedResponse(writer);
                 return;
             }
-            StringBuilder responseHeaders = new StringBuilder();
-            responseHeaders.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusText).append("\r\n");            
-    
-            if (httpRequest.isChunked()) {
-                responseHeaders.append("Transfer-Encoding: chunked\r\n");
-            } else if (!httpRequest.getMethod().equalsIgnoreCase("HEAD")) {
-                responseHeaders.append("Content-Length: ").append(content.length).append("\r\n");
+            if (content == null) {
+                content = NO_CONTENT;
             }
-    
-            responseHeaders.append("Content-Type: ").append(contentType).append("\r\n");
-            responseHeaders.append("\r\n");
-    
-            System.out.println("Response Headers:\n" + responseHeaders.toString());
-    
-            writer.write(responseHeaders.toString());
-            writer.flush();
-            
-            // Send the response body if the request method is not HEAD
-            if (!httpRequest.getMethod().equalsIgnoreCase("HEAD")) {
-                if (httpRequest.isChunked()) {
-                    // Send content in chunks
-                    try (OutputStream outputStream = clientSocket.getOutputStream()) {
-                        int offset = 0;
-                        while (offset < content.length) {
-                            int bytesToWrite = Math.min(1000, content.length - offset);
-                            outputStream.write(String.valueOf(bytesToWrite).getBytes());
-                            outputStream.write("\r\n".getBytes());
-                            outputStream.write(content, offset, bytesToWrite);
-                            outputStream.write("\r\n".getBytes());
-                            offset += bytesToWrite;
-                        }
-                        outputStream.write("0\r\n\r\n".getBytes());
-                        outputStream.flush();
-                    } catch (Exception e) {
-                        System.out.println("Error while sending response");
-                    }
-                }
-                else {
-                    // Send content in a single chunk
-                    try (OutputStream outputStream = clientSocket.getOutputStream()) {
-                        outputStream.write(content);
-                        outputStream.flush();
-                        outputStream.close();
-                    } catch (Exception e) {
-                        System.out.println("Error while sending response");
+            // A 304 has neither a body nor a length, HEAD has the length a GET would but no body
+            boolean notModified = statusCode == 304;
+            boolean sendBody = !notModified && !httpRequest.getMethod().equalsIgnoreCase("HEAD");
+            writer.status(statusCode, statusText);
+            if (!notModified) {
+                writer.header(ResponseWriter.CONTENT_LENGTH, content.length);
+                writer.header(ResponseWriter.CONTENT_TYPE, contentType);
+            }
+            writer.headers(extraHeaders).connection(keepAlive);
+            logHead(writer);
+
+            // Head and body go out in one write, the body only if the request method is not HEAD
+            writer.send(content, 0, sendBody ? content.length : 0);
+
+            responseStatus = statusCode;
+            responseBytes = sendBody ? content.length : 0;
+        } catch (Exception e) {
+            // Part of the response may have gone out, the connection can't carry another one
+            keepAlive = false;
+            MultiThreadedWebServer.getAccessLog().warn("Error while sending response: " + e);
+        }
+    }
+
+    // Writes the headers of a Transfer-Encoding: chunked response and returns the sink for its body.
+    // Closing the sink ends the body, the connection stays open.
+    private ChunkedOutputStream startChunkedResponse(int statusCode, String statusText, String contentType, String extraHeaders, ResponseWriter writer) throws IOException {
+        writer.status(statusCode, statusText)
+                .headers(ResponseWriter.TRANSFER_ENCODING_CHUNKED)
+                .header(ResponseWriter.CONTENT_TYPE, contentType)
+                .headers(extraHeaders)
+                .connection(keepAlive);
+        logHead(writer);
+        writer.sendHead();
+
+        if (chunkedOutput == null) {
+            chunkedOutput = new ChunkedOutputStream(writer.getOutputStream());
+        }
+        chunkedOutput.reset();
+        responseStatus = statusCode;
+        return chunkedOutput;
+    }
+
+    // Streams a file, or the given ranges of it, without loading it into memory. Chunked encoding is not
+    // used here since the length is known up front. More than one range is sent as multipart/byteranges,
+    // contentType being that of the file itself.
+    private void sendFile(int statusCode, String statusText, String contentType, Path filePath, long size, List<ByteRange> ranges, String extraHeaders, ResponseWriter writer, HttpRequest httpRequest) throws IOException {
+        boolean multipart = ranges != null && ranges.size() > 1;
+        long length;
+        if (ranges == null) {
+            length = size;
+        } else if (!multipart) {
+            length = ranges.get(0).getLength();
+        } else {
+            length = MULTIPART_END.length;
+            for (ByteRange range : ranges) {
+                length += multipartHeader(contentType, range, size).length + range.getLength() + CRLF.length;
+            }
+        }
+
+        writer.status(statusCode, statusText)
+                .header(ResponseWriter.CONTENT_LENGTH, length)
+                .header(ResponseWriter.CONTENT_TYPE, multipart ? MULTIPART_CONTENT_TYPE : contentType)
+                .headers(extraHeaders)
+                .connection(keepAlive);
+        logHead(writer);
+        writer.sendHead();
+
+        if (!httpRequest.getMethod().equalsIgnoreCase("HEAD")) {
+            try {
+                if (ranges == null) {
+                    writer.writeFile(filePath, 0, size);
+                } else if (!multipart) {
+                    writer.writeFile(filePath, ranges.get(0).getStart(), length);
+                } else {
+                    for (ByteRange range : ranges) {
+                        writer.write(multipartHeader(contentType, range, size));
+                        writer.writeFile(filePath, range.getStart(), range.getLength());
+                        writer.write(CRLF);
                     }
+                    writer.write(MULTIPART_END);
                 }
+            } catch (IOException e) {
+                // The body is partially sent, the connection can't be reused
+                keepAlive = false;
+                throw e;
             }
-    
-            System.out.println("Sent response header:\nHTTP/1.1 " + statusCode + " " + statusText);
-        } catch (Exception e) {
-            System.out.println("Error while sending response");
         }
+
+        responseStatus = statusCode;
+        responseBytes = httpRequest.getMethod().equalsIgnoreCase("HEAD") ? 0 : length;
+    }
+
+    // Answers a request the reader refused (408, 413, 431), its remaining bytes are unread so the connection closes
+    private void rejectedResponse(int statusCode, ResponseWriter writer) throws IOException {
+        String statusText;
+        switch (statusCode) {
+            case 408: statusText = "Request Timeout"; break;
+            case 413: statusText = "Content Too Large"; break;
+            case 431: statusText = "Request Header Fields Too Large"; break;
+            default: statusText = "Bad Request"; break;
+        }
+        byte[] content = (statusCode + " " + statusText).getBytes(StandardCharsets.US_ASCII);
+        keepAlive = false;
+        writer.status(statusCode, statusText)
+                .header(ResponseWriter.CONTENT_LENGTH, content.length)
+                .header(ResponseWriter.CONTENT_TYPE, "text/plain")
+                .connection(false);
+        logHead(writer);
+        writer.send(content, 0, content.length);
+        responseStatus = statusCode;
+        responseBytes = content.length;
+    }
+
+    // Over the concurrency limit: a cheap 503 now instead of a slow answer later
+    private void shedResponse(ResponseWriter writer) throws IOException {
+        MultiThreadedWebServer.getMetrics().requestShed();
+        keepAlive = false;
+        writer.status(503, "Service Unavailable")
+                .header(ResponseWriter.RETRY_AFTER, MultiThreadedWebServer.getRetryAfter())
+                .header(ResponseWriter.CONTENT_LENGTH, 0)
+                .connection(false);
+        logHead(writer);
+        writer.send(NO_CONTENT, 0, 0);
+        responseStatus = 503;
     }
 
-    private void corruptedResponse(BufferedWriter writer) {
+    private void corruptedResponse(ResponseWriter writer) {
+        keepAlive = false;
         try {
-            System.out.println("400 Bad Request - The request is corrupted");
+            MultiThreadedWebServer.getAccessLog().debug("400 Bad Request - The request is corrupted");
             String errorMessage = "400 Bad Request - The request is corrupted";
             byte[] errorContent = errorMessage.getBytes();
-            writer.write("HTTP/1.1 400 Bad Request\r\n");
-            writer.write("Content-Length: " + errorContent.length + "\r\n");
-            writer.write("Content-Type: text/plain\r\n");
-            writer.write("\r\n");
-            writer.write(errorMessage);
-            writer.flush();
-            return;
+            responseStatus = 400;
+            responseBytes = errorContent.length;
+            writer.status(400, "Bad Request")
+                    .header(ResponseWriter.CONTENT_LENGTH, errorContent.length)
+                    .header(ResponseWriter.CONTENT_TYPE, "text/plain")
+                    .connection(false);
+            writer.send(errorContent, 0, errorContent.length);
         } catch (IOException e) {
-            System.out.println("Error while sending response");
+            MultiThreadedWebServer.getAccessLog().warn("Error while sending response: " + e);
         }
     }
 
-    private String determineContentType(Path filePath) {
+    static String determineContentType(Path filePath) {
         // determine content type based on file extension
-        String fileName = filePath.getFileName().toString().toLowerCase();
-        if (fileName.endsWith(".html")) {
-            return "text/html";
-        } else if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
-            return "image/jpeg";
-        } else if (fileName.endsWith(".png")) {
-            return "image/png";
-        } else if (fileName.endsWith(".gif")) {
-            return "image/gif";
-        } else if (fileName.endsWith(".ico")) {
-            return "icon";
-        } else {
-            return "application/octet-stream";
-        }
+        String fileName = filePath.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String contentType = dot < 0 ? null : CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return contentType != null ? contentType : "application/octet-stream";
     }
 }
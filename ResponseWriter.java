@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes responses as bytes to a connection's channel. The head is assembled in a buffer owned by the
+ * writer from precomputed status lines and header names, numbers and ASCII values are encoded in place,
+ * and the head goes out together with an in-memory body in one gathering write.
+ * Bodies that are streamed (chunked, multipart, files) follow the head through the same channel.
+ */
+public class ResponseWriter {
+
+    private static final int HEAD_BUFFER_SIZE = 4096;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    static {
+        statusLine(200, "OK");
+        statusLine(206, "Partial Content");
+        statusLine(304, "Not Modified");
+        statusLine(400, "Bad Request");
+        statusLine(404, "Not Found");
+        statusLine(408, "Request Timeout");
+        statusLine(413, "Content Too Large");
+        statusLine(416, "Range Not Satisfiable");
+        statusLine(431, "Request Header Fields Too Large");
+        statusLine(500, "Internal Server Error");
+        statusLine(501, "Not Implemented");
+        statusLine(503, "Service Unavailable");
+    }
+
+    public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    public static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    public static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+    public static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final OutputStream bodyStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            ResponseWriter.this.write(data, offset, length);
+        }
+    };
+    // Reused for every response this writer sends, nothing is tied to the thread that serves it
+    private ByteBuffer head = ByteBuffer.allocate(HEAD_BUFFER_SIZE);
+    // For the parts of a file transferTo can't send, allocated the first time
+    private ByteBuffer copyBuffer;
+    // When the current response's head was complete, 0 until then
+    private long headDoneAt;
+
+    public ResponseWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    private static void statusLine(int code, String text) {
+        STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + text + "\r\n");
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Starts a new response head with its status line.
+     */
+    public ResponseWriter status(int code, String text) {
+        head.clear();
+        headDoneAt = 0;
+        byte[] line = code >= 0 && code < STATUS_LINES.length ? STATUS_LINES[code] : null;
+        if (line != null) {
+            put(line);
+        } else {
+            putAscii("HTTP/1.1 ").putNumber(code).putAscii(" ").putAscii(text).put(CRLF);
+        }
+        return this;
+    }
+
+    public ResponseWriter header(byte[] name, String value) {
+        return put(name).putAscii(value).put(CRLF);
+    }
+
+    public ResponseWriter header(byte[] name, long value) {
+        return put(name).putNumber(value).put(CRLF);
+    }
+
+    // Complete header lines, each ending with CRLF
+    public ResponseWriter headers(String lines) {
+        return lines == null ? this : putAscii(lines);
+    }
+
+    public ResponseWriter headers(byte[] lines) {
+        return lines == null ? this : put(lines);
+    }
+
+    public ResponseWriter connection(boolean keepAlive) {
+        return put(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    // System.nanoTime() when the current response started going out, 0 while its head is being built
+    public long getHeadDoneAt() {
+        return headDoneAt;
+    }
+
+    // The head as text, for debug logging
+    public String describeHead() {
+        byte[] bytes = new byte[head.position()];
+        head.duplicate().flip().get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Ends the head and sends it together with content[offset..offset+length) in one gathering write.
+     */
+    public void send(byte[] content, int offset, int length) throws IOException {
+        headDoneAt = System.nanoTime();
+        put(CRLF);
+        head.flip();
+        gather[0] = head;
+        gather[1] = ByteBuffer.wrap(content, offset, length);
+        try {
+            while (gather[0].hasRemaining() || gather[1].hasRemaining()) {
+                sent(channel.write(gather));
+            }
+        } finally {
+            gather[1] = null;
+        }
+    }
+
+    // Ends and sends the head alone, the body follows through write, writeFile or getOutputStream
+    public void sendHead() throws IOException {
+        headDoneAt = System.nanoTime();
+        put(CRLF);
+        head.flip();
+        while (head.hasRemaining()) {
+            sent(channel.write(head));
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            sent(channel.write(buffer));
+        }
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Sends a file region. Engines that queue their writes get the region itself,
+     * otherwise it is sent with transferTo (sendfile on Linux) straight into the channel.
+     */
+    public void writeFile(Path filePath, long position, long count) throws IOException {
+        if (channel instanceof RequestHandler.FileRegionWriter) {
+            ((RequestHandler.FileRegionWriter) channel).writeFile(filePath, position, count);
+            sent(count);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long end = position + count;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent <= 0) {
+                    // Sockets of virtual threads are non-blocking underneath, so transferTo returns 0 when the
+                    // send buffer is full. A plain write parks until the client reads, instead of spinning.
+                    if (position >= file.size()) {
+                        throw new IOException("File shrank while sending: " + filePath);
+                    }
+                    sent = copy(file, position, end - position);
+                }
+                position += sent;
+                sent(sent);
+            }
+        }
+    }
+
+    // Sends up to a buffer of the file with a blocking write, returns how much was sent
+    private long copy(FileChannel file, long position, long count) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        }
+        copyBuffer.clear();
+        copyBuffer.limit((int) Math.min(COPY_BUFFER_SIZE, count));
+        int read = file.read(copyBuffer, position);
+        if (read <= 0) {
+            throw new IOException("File shrank while sending");
+        }
+        copyBuffer.flip();
+        while (copyBuffer.hasRemaining()) {
+            channel.write(copyBuffer);
+        }
+        return read;
+    }
+
+    private static void sent(long count) {
+        MultiThreadedWebServer.getMetrics().addBytesSent(count);
+    }
+
+    // Body bytes written here go straight to the channel, for sinks such as ChunkedOutputStream
+    public OutputStream getOutputStream() {
+        return bodyStream;
+    }
+
+    private ResponseWriter put(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        head.put(bytes);
+        return this;
+    }
+
+    private ResponseWriter putAscii(String text) {
+        int length = text.length();
+        ensureRemaining(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            head.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+        return this;
+    }
+
+    private ResponseWriter putNumber(long value) {
+        ensureRemaining(20);
+        if (value < 0) {
+            head.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            head.put((byte) ('0' + (value / divisor) % 10));
+        }
+        return this;
+    }
+
+    // Heads that outgrow the buffer get a bigger one, kept for the writer's later responses
+    private void ensureRemaining(int count) {
+        if (head.remaining() < count) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(head.capacity() * 2, head.position() + count));
+            head.flip();
+            bigger.put(head);
+            head = bigger;
+        }
+    }
+}
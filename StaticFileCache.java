@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared in-memory cache of static files, keyed by resolved path.
+ * Entries are evicted least recently used first once the total cached bytes exceed maxBytes.
+ * Which version of a file is current comes from the StaticFileIndex, so hot files are served
+ * without touching the disk. Files the index sees deleted are dropped right away.
+ */
+public class StaticFileCache {
+
+    public static class Entry {
+        private final byte[] content;
+        private final String contentType;
+        private final long lastModified;
+        private final String etag;
+        private volatile byte[] responseHeaders;
+
+        Entry(byte[] content, String contentType, long lastModified) {
+            this.content = content;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.etag = etag(content.length, lastModified);
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        // Header lines the handler derived from this version of the file, kept so they are built once
+        public byte[] getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        public void setResponseHeaders(byte[] responseHeaders) {
+            this.responseHeaders = responseHeaders;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public StaticFileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Strong entity tag for a file version, derived from its size and modification time.
+     */
+    public static String etag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Returns the cached file for a version already known from the file index, loading it when the
+     * cached copy is missing or of another version. Nothing is checked on disk for a hit.
+     * A file that changed again since the index saw it is stored as the version actually read, so it
+     * is a hit again once the index catches up. Returns null when the file is too large to cache.
+     */
+    public Entry get(Path path, long size, long lastModified) throws IOException {
+        if (size > Math.min(maxFileSize, maxBytes)) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.lastModified == lastModified && entry.content.length == size) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        // Read before the content: a write in between leaves the entry older than the file, never newer
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        byte[] content = Files.readAllBytes(path);
+        if (content.length > Math.min(maxFileSize, maxBytes)) {
+            return null;
+        }
+        Entry loaded = new Entry(content, RequestHandler.determineContentType(path), modified);
+        put(path, loaded);
+        return loaded;
+    }
+
+    private synchronized void put(Path path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            currentBytes -= previous.content.length;
+        }
+        currentBytes += entry.content.length;
+
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Path, Entry> evicted = eldest.next();
+            if (evicted.getValue() == entry) {
+                continue;
+            }
+            currentBytes -= evicted.getValue().content.length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops a deleted file, or everything under a deleted directory, so it stops taking up cache bytes.
+     */
+    public synchronized void remove(Path path) {
+        Iterator<Map.Entry<Path, Entry>> cached = entries.entrySet().iterator();
+        while (cached.hasNext()) {
+            Map.Entry<Path, Entry> entry = cached.next();
+            if (entry.getKey().startsWith(path)) {
+                currentBytes -= entry.getValue().content.length;
+                cached.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+}
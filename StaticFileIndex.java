@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the files under the root directory, keyed by normalized request path ("/spongebob.jpg"),
+ * built at startup and kept current by a WatchService. Resolving a GET is then a hash lookup: the
+ * size, modification time and content type come from the index without touching the disk.
+ * Paths that are not in the index are checked on disk once and then remembered as missing until
+ * something is created under the root. Only regular files whose real path is inside the root are
+ * indexed, so ".." segments, symbolic links and the like can't reach anything outside it.
+ * When the root is too big to index or can't be watched, entries are trusted for revalidateInterval
+ * milliseconds and then checked again. So are files reached through a symbolic link, whose target
+ * changes without any event in the watched directories.
+ */
+public class StaticFileIndex {
+
+    private static final int MAX_FILES = 100_000;
+    private static final int MAX_MISSES = 10_000;
+
+    public static class FileInfo {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final String contentType;
+        private final String etag;
+        private final long checkedAt;
+        private final boolean linked;
+
+        FileInfo(Path path, long size, long lastModified, long checkedAt, boolean linked) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentType = RequestHandler.determineContentType(path);
+            this.etag = StaticFileCache.etag(size, lastModified);
+            this.checkedAt = checkedAt;
+            this.linked = linked;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    private final Path root;
+    private final long revalidateInterval;
+    private final Map<String, FileInfo> files = new ConcurrentHashMap<>();
+    // Request path -> when it was found missing
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private volatile boolean watching;
+
+    public StaticFileIndex(String rootDirectory, long revalidateInterval) {
+        Path path = Paths.get(rootDirectory).toAbsolutePath().normalize();
+        try {
+            path = path.toRealPath();
+        } catch (IOException e) {
+            System.err.println("Root directory " + rootDirectory + " is not accessible: " + e.getMessage());
+        }
+        this.root = path;
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    /**
+     * Indexes the root and starts watching it for changes on a background thread.
+     */
+    public void start() {
+        boolean complete = scan(root);
+        if (!complete) {
+            System.err.println("More than " + MAX_FILES + " files under " + root + ", indexing them as they are requested.");
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerTree(root);
+        } catch (IOException e) {
+            System.err.println("Can't watch " + root + " for changes, files are revalidated instead: " + e.getMessage());
+            return;
+        }
+        watching = true;
+        Thread watcher = new Thread(this::watch, "static-file-index");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * The file a request path refers to, or null when there is none (a 404).
+     */
+    public FileInfo lookup(String requestPath) {
+        String key = normalize(requestPath);
+        FileInfo info = files.get(key);
+        if (info != null && ((watching && !info.linked) || isFresh(info.checkedAt))) {
+            return info;
+        }
+        if (info == null) {
+            Long missedAt = misses.get(key);
+            if (missedAt != null && (watching || isFresh(missedAt))) {
+                return null;
+            }
+        }
+        return resolve(key);
+    }
+
+    // The indexed file at an absolute path under the root, e.g. the .gz sibling of a file
+    public FileInfo lookup(Path file) {
+        if (!file.startsWith(root)) {
+            return null;
+        }
+        return lookup(keyOf(file));
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Stops watching the root, lookups still work but revalidate against the filesystem from then on.
+     */
+    public void close() {
+        watching = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the watch on " + root + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes "." and ".." segments and repeated slashes the way RFC 3986 does, a ".." above the
+     * root stays at the root. The result always starts with "/".
+     */
+    static String normalize(String path) {
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        if (path.indexOf("/.") < 0 && path.indexOf("//") < 0) {
+            return path;
+        }
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                segments.pollLast();
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String segment : segments) {
+            normalized.append('/').append(segment);
+        }
+        return normalized.length() == 0 ? "/" : normalized.toString();
+    }
+
+    private boolean isFresh(long checkedAt) {
+        return System.currentTimeMillis() - checkedAt < revalidateInterval;
+    }
+
+    private String keyOf(Path file) {
+        StringBuilder key = new StringBuilder();
+        for (Path name : root.relativize(file)) {
+            key.append('/').append(name);
+        }
+        return key.toString();
+    }
+
+    // Looks a path up on disk, for paths the index has not seen or no longer trusts
+    private FileInfo resolve(String key) {
+        long now = System.currentTimeMillis();
+        try {
+            Path file = root.resolve(key.substring(1));
+            FileInfo info = index(file, Files.readAttributes(file, BasicFileAttributes.class), now);
+            if (info != null) {
+                misses.remove(key);
+                return info;
+            }
+        } catch (NoSuchFileException | InvalidPathException e) {
+            // Missing or not a valid file name at all
+        } catch (IOException e) {
+            System.err.println("Error reading " + key + ": " + e.getMessage());
+        }
+        if (files.remove(key) != null) {
+            // Gone since it was indexed
+            MultiThreadedWebServer.getFileCache().remove(root.resolve(key.substring(1)));
+        }
+        if (misses.size() >= MAX_MISSES) {
+            misses.clear();
+        }
+        misses.put(key, now);
+        return null;
+    }
+
+    // Adds a regular file inside the root, returns null for anything else
+    private FileInfo index(Path file, BasicFileAttributes attributes, long now) throws IOException {
+        if (!attributes.isRegularFile() && !attributes.isSymbolicLink()) {
+            return null;
+        }
+        Path real = file.toRealPath();
+        if (!real.startsWith(root) || !Files.isRegularFile(real)) {
+            return null;
+        }
+        // Reached through a link, to the file itself or to a directory above it
+        boolean linked = !real.equals(file);
+        if (linked) {
+            attributes = Files.readAttributes(real, BasicFileAttributes.class);
+        }
+        FileInfo info = new FileInfo(file, attributes.size(), attributes.lastModifiedTime().toMillis(), now, linked);
+        files.put(keyOf(file), info);
+        return info;
+    }
+
+    // Indexes everything under directory, returns false if it stopped at MAX_FILES
+    private boolean scan(Path directory) {
+        long now = System.currentTimeMillis();
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (files.size() >= MAX_FILES) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    index(file, attributes, now);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error indexing " + directory + ": " + e.getMessage());
+        }
+        return files.size() < MAX_FILES;
+    }
+
+    private void registerTree(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                watching = false;
+                return;
+            }
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                    // Events were lost, start over
+                    files.clear();
+                    misses.clear();
+                    scan(root);
+                    continue;
+                }
+                apply(event.kind(), directory.resolve((Path) event.context()));
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private void apply(WatchEvent.Kind<?> kind, Path path) {
+        String key = keyOf(path);
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // The path may have been a file or a whole directory
+            files.remove(key);
+            files.keySet().removeIf(indexed -> indexed.startsWith(key + "/"));
+            MultiThreadedWebServer.getFileCache().remove(path);
+            return;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            misses.clear();
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerTree(path);
+                    scan(path);
+                }
+            } else if (index(path, attributes, System.currentTimeMillis()) == null) {
+                files.remove(key);
+            }
+        } catch (IOException e) {
+            // Gone again before it could be read
+            files.remove(key);
+        }
+    }
+}
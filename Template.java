@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An HTML page with {{Name}} slots, parsed once into pre-encoded literal segments and slot names.
+ * Rendering writes the literals and whatever each slot produces straight into an Output in one pass.
+ * Parsed templates are shared and reloaded when the file's modification time changes.
+ */
+public class Template {
+
+    /**
+     * Produces the content of one slot, possibly in many small writes.
+     */
+    public interface Slot {
+        void write(Output out) throws IOException;
+    }
+
+    /**
+     * UTF-8 output with its own buffer. Whatever is buffered is passed on to the underlying stream
+     * every BUFFER_SIZE bytes, so long slot content goes out in chunks instead of one big String.
+     */
+    public static class Output {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+
+        public Output(OutputStream out) {
+            this.out = out;
+        }
+
+        public Output write(byte[] bytes) throws IOException {
+            if (bytes.length > BUFFER_SIZE - count) {
+                flushBuffer();
+                if (bytes.length > BUFFER_SIZE) {
+                    out.write(bytes);
+                    return this;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+            return this;
+        }
+
+        public Output write(String text) throws IOException {
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    // Rare in practice, let the JDK encode the rest
+                    return write(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                }
+                if (count == BUFFER_SIZE) {
+                    flushBuffer();
+                }
+                buffer[count++] = (byte) c;
+            }
+            return this;
+        }
+
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<Path, Template> TEMPLATES = new ConcurrentHashMap<>();
+    private static final long REVALIDATE_INTERVAL = 1000;
+
+    // Literal segments are byte[], slots are their name
+    private final Object[] segments;
+    private final long lastModified;
+    private volatile long checkedAt;
+
+    private Template(Object[] segments, long lastModified) {
+        this.segments = segments;
+        this.lastModified = lastModified;
+        this.checkedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the parsed template for path, reparsing it if the file changed since it was loaded.
+     */
+    public static Template get(Path path) throws IOException {
+        Template template = TEMPLATES.get(path);
+        long now = System.currentTimeMillis();
+        if (template != null && now - template.checkedAt < REVALIDATE_INTERVAL) {
+            return template;
+        }
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        if (template != null && template.lastModified == lastModified) {
+            template.checkedAt = now;
+            return template;
+        }
+        Template parsed = parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), lastModified);
+        TEMPLATES.put(path, parsed);
+        return parsed;
+    }
+
+    static Template parse(String text, long lastModified) {
+        List<Object> segments = new ArrayList<>();
+        int position = 0;
+        while (position < text.length()) {
+            int open = text.indexOf("{{", position);
+            int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+            if (close < 0) {
+                segments.add(text.substring(position).getBytes(StandardCharsets.UTF_8));
+                break;
+            }
+            if (open > position) {
+                segments.add(text.substring(position, open).getBytes(StandardCharsets.UTF_8));
+            }
+            segments.add(text.substring(open + 2, close).trim());
+            position = close + 2;
+        }
+        return new Template(segments.toArray(), lastModified);
+    }
+
+    /**
+     * Writes the template to out, filling each slot from slots. Slots without a value render empty.
+     */
+    public void render(Output out, Map<String, Slot> slots) throws IOException {
+        for (Object segment : segments) {
+            if (segment instanceof byte[]) {
+                out.write((byte[]) segment);
+            } else {
+                Slot slot = slots.get(segment);
+                if (slot != null) {
+                    slot.write(out);
+                }
+            }
+        }
+        out.flush();
+    }
+}
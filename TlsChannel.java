@@ -0,0 +1,389 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The plaintext side of a TLS connection, driven by an SSLEngine over any pair of byte channels.
+ * Over blocking channels every call completes like a socket would; over non-blocking ones read
+ * returns 0 when more network data is needed and write returns 0 while earlier records are still
+ * waiting to be sent, so the caller waits for the socket to become readable or writable and retries
+ * (hasPendingOutput tells which). The handshake happens inside read, or up front with handshake().
+ * The engine's delegated tasks (certificate and key work, the expensive part of a handshake) run
+ * inline when no executor is given, otherwise on the executor while read returns 0; taskListener is
+ * called once they are done. One thread may read while others write, writes are serialized on the
+ * outbound lock, which the reader also takes when the engine has something of its own to send.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final SSLEngine engine;
+    private final Executor taskExecutor;
+    private final Object outboundLock = new Object();
+    // netIn holds received ciphertext and is kept ready for reading into, netOut and appIn ready for draining
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private Runnable taskListener;
+    private volatile boolean tasksRunning;
+    private volatile IOException taskFailure;
+    private long handshakeStartedAt;
+    private long handshakeStartedMillis;
+    private boolean handshakeDone;
+    private boolean handshakeCounted;
+    private boolean closed;
+
+    public TlsChannel(ReadableByteChannel in, WritableByteChannel out, SSLEngine engine, Executor taskExecutor) {
+        this.in = in;
+        this.out = out;
+        this.engine = engine;
+        this.taskExecutor = taskExecutor;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut.flip();
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        this.appIn.flip();
+    }
+
+    // Called from the task executor once delegated tasks finish, the caller should retry its read
+    public void setTaskListener(Runnable taskListener) {
+        this.taskListener = taskListener;
+    }
+
+    /**
+     * Runs the whole handshake on blocking channels, throwing if it fails or the peer goes away.
+     */
+    public void handshake() throws IOException {
+        startHandshake();
+        engine.beginHandshake();
+        while (!handshakeDone) {
+            if (step() < 0) {
+                fail();
+                throw new EOFException("Connection closed during the TLS handshake");
+            }
+        }
+        flush();
+    }
+
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    // Whether delegated tasks are running on the executor, nothing happens on the connection until they finish
+    public boolean isTaskRunning() {
+        return tasksRunning;
+    }
+
+    // Whether ciphertext is waiting for the socket to become writable
+    public boolean hasPendingOutput() {
+        synchronized (outboundLock) {
+            return netOut.hasRemaining();
+        }
+    }
+
+    // The application protocol the handshake settled on, an empty string or null when none was
+    public String getApplicationProtocol() {
+        return engine.getApplicationProtocol();
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        while (!appIn.hasRemaining()) {
+            if (closed) {
+                return -1;
+            }
+            int progress = step();
+            if (progress <= 0) {
+                return progress;
+            }
+        }
+        int count = Math.min(appIn.remaining(), target.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        target.put(appIn);
+        appIn.limit(limit);
+        return count;
+    }
+
+    // Moves the connection forward by one engine operation: 1 when something happened, 0 when it has to
+    // wait for the network or the executor, -1 at end of stream
+    private int step() throws IOException {
+        if (taskFailure != null) {
+            throw taskFailure;
+        }
+        if (!flush() || tasksRunning) {
+            return 0;
+        }
+        switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                return runTasks() ? 1 : 0;
+            case NEED_WRAP:
+                wrap(EMPTY);
+                return 1;
+            default:
+                break;
+        }
+        startHandshake();
+        SSLEngineResult result = unwrap();
+        switch (result.getStatus()) {
+            case CLOSED:
+                closed = true;
+                if (!handshakeDone) {
+                    fail();
+                }
+                // Answer the peer's close_notify
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    flush();
+                }
+                return -1;
+            case BUFFER_UNDERFLOW:
+                int read = in.read(netIn);
+                if (read < 0) {
+                    closed = true;
+                    if (!handshakeDone) {
+                        fail();
+                    }
+                    return -1;
+                }
+                return read > 0 ? 1 : 0;
+            default:
+                return 1;
+        }
+    }
+
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } catch (SSLException e) {
+                fail();
+                throw e;
+            } finally {
+                appIn.flip();
+                netIn.compact();
+            }
+            handshakeProgress(result);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn.flip();
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                        netIn.position(netIn.limit()).limit(netIn.capacity());
+                    }
+                    return result;
+                default:
+                    if (result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() == 0
+                            && result.bytesProduced() == 0 && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK
+                            && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        // Nothing usable in the buffer yet, same as an underflow
+                        return new SSLEngineResult(SSLEngineResult.Status.BUFFER_UNDERFLOW, result.getHandshakeStatus(), 0, 0);
+                    }
+                    return result;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        return (int) write(new ByteBuffer[] {source}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    /**
+     * Encrypts as much of sources as the socket takes, one record at a time. Over a blocking channel
+     * everything is written before returning.
+     */
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        long written = 0;
+        synchronized (outboundLock) {
+            while (flush() && remaining(sources, offset, length) > 0) {
+                written += wrap(sources, offset, length).bytesConsumed();
+            }
+        }
+        return written;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer source) throws IOException {
+        return wrap(new ByteBuffer[] {source}, 0, 1);
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] sources, int offset, int length) throws IOException {
+        synchronized (outboundLock) {
+            return wrapRecord(sources, offset, length);
+        }
+    }
+
+    private SSLEngineResult wrapRecord(ByteBuffer[] sources, int offset, int length) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(sources, offset, length, netOut);
+            } catch (SSLException e) {
+                fail();
+                throw e;
+            } finally {
+                netOut.flip();
+            }
+            handshakeProgress(result);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                    throw new ClosedChannelException();
+                }
+                return result;
+            }
+            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    /**
+     * Sends buffered ciphertext, returns false when some is left because the socket is full.
+     */
+    public boolean flush() throws IOException {
+        synchronized (outboundLock) {
+            while (netOut.hasRemaining()) {
+                if (out.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Returns true when the tasks ran here, false when they were handed to the executor
+    private boolean runTasks() throws IOException {
+        List<Runnable> tasks = new ArrayList<>();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        if (taskExecutor == null) {
+            tasks.forEach(Runnable::run);
+            return true;
+        }
+        tasksRunning = true;
+        try {
+            taskExecutor.execute(() -> {
+                try {
+                    tasks.forEach(Runnable::run);
+                } catch (RuntimeException e) {
+                    taskFailure = new SSLException("TLS handshake task failed", e);
+                }
+                tasksRunning = false;
+                Runnable listener = taskListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Handshakes are queued up already, this one runs here rather than failing
+            tasksRunning = false;
+            tasks.forEach(Runnable::run);
+            return true;
+        }
+        return false;
+    }
+
+    private void startHandshake() {
+        if (handshakeStartedAt == 0) {
+            handshakeStartedAt = System.nanoTime();
+            handshakeStartedMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void handshakeProgress(SSLEngineResult result) {
+        if (!handshakeDone && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeDone = true;
+            if (!handshakeCounted) {
+                handshakeCounted = true;
+                // A resumed session, from the cache or a ticket, keeps the creation time of the one it resumes
+                boolean resumed = engine.getSession().getCreationTime() < handshakeStartedMillis;
+                MultiThreadedWebServer.getMetrics().tlsHandshake(resumed, System.nanoTime() - handshakeStartedAt);
+            }
+        }
+    }
+
+    // A handshake that was started and did not finish
+    private void fail() {
+        if (!handshakeCounted && handshakeStartedAt != 0) {
+            handshakeCounted = true;
+            MultiThreadedWebServer.getMetrics().tlsHandshakeFailed();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Sends close_notify if the socket takes it right away, the underlying channels are left to the caller.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!handshakeDone) {
+            fail();
+            return;
+        }
+        engine.closeOutbound();
+        try {
+            if (flush()) {
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // The peer is gone, nothing to notify
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers, int offset, int length) {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        return remaining;
+    }
+
+    // A bigger copy of a buffer that is ready for draining
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+        bigger.put(buffer);
+        bigger.flip();
+        return bigger;
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * HTTP load generator for a locally running server. Each connection is a keep-alive socket on its
+ * own thread replaying a weighted mix of GET /index.html, GET of the images, POST /params_info.html
+ * and POST /delete (of an email the same connection added).
+ *
+ * Closed loop (default): every connection sends its next request as soon as the previous answer arrived.
+ * Open loop (--rate N): requests are scheduled at N per second overall and latency is measured from
+ * the scheduled time, so a stalled server shows up in the percentiles instead of just slowing the load.
+ *
+ * With --tls true the connections are HTTPS, trusting any certificate since the server is local and
+ * self-signed. --requests-per-connection N reconnects after N requests to load the handshake path;
+ * with --resume true (default) reconnects resume the previous session, with false each one is a full
+ * handshake. Handshake times are reported separately and are not part of the request latencies.
+ *
+ * Usage: java LoadGenerator [--host localhost] [--port 8080] [--connections 16] [--duration 10]
+ *        [--warmup 2] [--rate 0] [--mix index=60,image=25,post=10,delete=5]
+ *        [--tls false] [--resume true] [--requests-per-connection 0]
+ */
+public class LoadGenerator {
+
+    private static final Pattern UUID_PATTERN = Pattern.compile("<li>uuid: ([0-9a-f-]{36})</li>");
+    private static final String[] IMAGES = {"/spongebob.jpg", "/patrick.jpg", "/favicon.ico"};
+
+    private enum Operation { INDEX, IMAGE, POST, DELETE }
+
+    private static String host = "localhost";
+    private static int port = 8080;
+    private static int connections = 16;
+    private static long durationSeconds = 10;
+    private static long warmupSeconds = 2;
+    private static double rate = 0;
+    private static boolean tls = false;
+    private static boolean resume = true;
+    private static int requestsPerConnection = 0;
+    private static SSLContext sharedTlsContext;
+    private static final Map<Operation, Integer> mix = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        mix.put(Operation.INDEX, 60);
+        mix.put(Operation.IMAGE, 25);
+        mix.put(Operation.POST, 10);
+        mix.put(Operation.DELETE, 5);
+        parseArguments(args);
+        if (tls) {
+            sharedTlsContext = trustingContext();
+        }
+
+        long start = System.nanoTime() + 200_000_000L;
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+        System.out.printf("%s:%d%s, %d connections, %s, %ds warmup + %ds measured%n", host, port,
+                tls ? " (TLS" + (resume ? "" : ", no resumption") + ")" : "", connections,
+                rate > 0 ? "open loop at " + rate + " req/s" : "closed loop", warmupSeconds, durationSeconds);
+
+        List<Worker> workers = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, start, measureFrom, end, done);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        report(workers);
+    }
+
+    private static void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Long.parseLong(value); break;
+                case "--warmup": warmupSeconds = Long.parseLong(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--tls": tls = Boolean.parseBoolean(value); break;
+                case "--resume": resume = Boolean.parseBoolean(value); break;
+                case "--requests-per-connection": requestsPerConnection = Integer.parseInt(value); break;
+                case "--mix":
+                    mix.clear();
+                    for (String part : value.split(",")) {
+                        String[] weight = part.split("=");
+                        mix.put(Operation.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    // Accepts the server's self-signed certificate without checking it, this only ever talks to localhost
+    private static SSLContext trustingContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        return context;
+    }
+
+    private static class Worker implements Runnable {
+        private final int id;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final CountDownLatch done;
+        private final Random random;
+        private final ArrayDeque<String> ownEmails = new ArrayDeque<>();
+        private final Map<Operation, Histogram> histograms = new LinkedHashMap<>();
+        private final Histogram handshakes = new Histogram();
+        private final byte[] buffer = new byte[64 * 1024];
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private int requestsOnConnection;
+        private boolean measuring;
+        long requests;
+        long errors;
+        long bytesReceived;
+        long reconnects;
+        long resumed;
+
+        Worker(int id, long start, long measureFrom, long end, CountDownLatch done) {
+            this.id = id;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.done = done;
+            this.random = new Random(id);
+            for (Operation operation : Operation.values()) {
+                histograms.put(operation, new Histogram());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Open loop: this connection's share of the rate, staggered against the others
+                long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+                long scheduled = start + (interval * id) / Math.max(1, connections);
+                while (true) {
+                    long now = System.nanoTime();
+                    if (interval > 0) {
+                        if (scheduled >= end) {
+                            break;
+                        }
+                        if (now < scheduled) {
+                            LockSupport.parkNanos(scheduled - now);
+                        }
+                    } else {
+                        if (now >= end) {
+                            break;
+                        }
+                        scheduled = Math.max(now, start);
+                    }
+                    Operation operation = pick();
+                    measuring = scheduled >= measureFrom;
+                    boolean ok = execute(operation);
+                    long latency = System.nanoTime() - scheduled;
+                    if (scheduled >= measureFrom) {
+                        requests++;
+                        if (ok) {
+                            histograms.get(operation).record(latency / 1000);
+                        } else {
+                            errors++;
+                        }
+                    }
+                    scheduled += interval;
+                }
+            } finally {
+                closeQuietly();
+                done.countDown();
+            }
+        }
+
+        private Operation pick() {
+            int total = 0;
+            for (int weight : mix.values()) {
+                total += weight;
+            }
+            int choice = random.nextInt(Math.max(1, total));
+            for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+                choice -= entry.getValue();
+                if (choice < 0) {
+                    return entry.getKey();
+                }
+            }
+            return Operation.INDEX;
+        }
+
+        private boolean execute(Operation operation) {
+            String request;
+            switch (operation) {
+                case IMAGE:
+                    request = get(IMAGES[random.nextInt(IMAGES.length)]);
+                    break;
+                case POST:
+                    request = post("/params_info.html", "Sender=load" + id + "&Receiver=server&Subject=bench&Message=hello+there");
+                    break;
+                case DELETE:
+                    String uuid = ownEmails.isEmpty() ? "00000000-0000-0000-0000-000000000000" : ownEmails.poll();
+                    request = post("/delete", "uuid-to-delete=" + uuid);
+                    break;
+                default:
+                    request = get("/index.html");
+                    break;
+            }
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                Response response = readResponse(operation == Operation.POST);
+                if (response.close || (requestsPerConnection > 0 && ++requestsOnConnection >= requestsPerConnection)) {
+                    closeQuietly();
+                }
+                if (operation == Operation.POST && response.body != null) {
+                    Matcher matcher = UUID_PATTERN.matcher(response.body);
+                    if (matcher.find()) {
+                        ownEmails.add(matcher.group(1));
+                    }
+                }
+                return response.status == 200;
+            } catch (IOException e) {
+                closeQuietly();
+                return false;
+            }
+        }
+
+        private String get(String path) {
+            return "GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: LoadGenerator\r\n\r\n";
+        }
+
+        private String post(String path, String body) {
+            return "POST " + path + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: LoadGenerator\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            socket.setSoTimeout(30_000);
+            if (tls) {
+                handshake();
+            }
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+            requestsOnConnection = 0;
+            reconnects++;
+        }
+
+        // Layers TLS over the connected socket and times the handshake. Sessions are cached per context,
+        // so a fresh context per connection means no resumption.
+        private void handshake() throws IOException {
+            SSLContext context = sharedTlsContext;
+            if (!resume) {
+                try {
+                    context = trustingContext();
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+            long started = System.nanoTime();
+            long startedMillis = System.currentTimeMillis();
+            SSLSocket tlsSocket = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+            tlsSocket.startHandshake();
+            socket = tlsSocket;
+            if (measuring) {
+                handshakes.record((System.nanoTime() - started) / 1000);
+                // A resumed session keeps the creation time of the session it resumes
+                if (tlsSocket.getSession().getCreationTime() < startedMillis) {
+                    resumed++;
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+                socket = null;
+            }
+        }
+
+        private Response readResponse(boolean keepBody) throws IOException {
+            Response response = new Response();
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            response.status = Integer.parseInt(parts[1]);
+            long contentLength = -1;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    response.close = value.equalsIgnoreCase("close");
+                }
+            }
+            ByteArrayOutputStream body = keepBody ? new ByteArrayOutputStream() : null;
+            if (chunked) {
+                while (true) {
+                    String size = readLine();
+                    int semicolon = size.indexOf(';');
+                    long chunkSize = Long.parseLong((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+                    if (chunkSize == 0) {
+                        while (!readLine().isEmpty()) {
+                            // Trailers
+                        }
+                        break;
+                    }
+                    readBody(chunkSize, body);
+                    readLine();
+                }
+            } else if (contentLength >= 0) {
+                readBody(contentLength, body);
+            } else if (response.status != 304) {
+                // Delimited by the connection closing
+                readBody(Long.MAX_VALUE, body);
+                response.close = true;
+            }
+            if (body != null) {
+                response.body = body.toString(StandardCharsets.UTF_8.name());
+            }
+            return response;
+        }
+
+        // Reads length body bytes, or up to end of stream when length is Long.MAX_VALUE
+        private void readBody(long length, ByteArrayOutputStream body) throws IOException {
+            boolean untilClose = length == Long.MAX_VALUE;
+            while (length > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (read < 0) {
+                    if (untilClose) {
+                        return;
+                    }
+                    throw new IOException("Connection closed mid-body");
+                }
+                if (body != null) {
+                    body.write(buffer, 0, read);
+                }
+                bytesReceived += read;
+                if (!untilClose) {
+                    length -= read;
+                }
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("Connection closed");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            bytesReceived += line.length() + 2;
+            return line.toString();
+        }
+    }
+
+    private static class Response {
+        int status;
+        boolean close;
+        String body;
+    }
+
+    private static void report(List<Worker> workers) {
+        Map<Operation, Histogram> merged = new LinkedHashMap<>();
+        Histogram all = new Histogram();
+        long requests = 0;
+        long errors = 0;
+        long bytes = 0;
+        long reconnects = 0;
+        long resumed = 0;
+        Histogram handshakes = new Histogram();
+        for (Worker worker : workers) {
+            requests += worker.requests;
+            errors += worker.errors;
+            bytes += worker.bytesReceived;
+            reconnects += worker.reconnects;
+            resumed += worker.resumed;
+            handshakes.merge(worker.handshakes);
+            for (Map.Entry<Operation, Histogram> entry : worker.histograms.entrySet()) {
+                merged.computeIfAbsent(entry.getKey(), operation -> new Histogram()).merge(entry.getValue());
+                all.merge(entry.getValue());
+            }
+        }
+
+        System.out.printf("requests=%d errors=%d connections_opened=%d%n", requests, errors, reconnects);
+        System.out.printf("throughput=%.1f req/s%n", requests / (double) durationSeconds);
+        System.out.printf("received=%.1f MB total (including warmup)%n", bytes / 1e6);
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s %10s%n",
+                "latency", "count", "mean_us", "p50_us", "p90_us", "p99_us", "p99.9_us", "max_us");
+        for (Map.Entry<Operation, Histogram> entry : merged.entrySet()) {
+            if (entry.getValue().getTotalCount() > 0) {
+                printRow(entry.getKey().name().toLowerCase(), entry.getValue());
+            }
+        }
+        printRow("all", all);
+        if (handshakes.getTotalCount() > 0) {
+            System.out.printf("tls handshakes=%d (%.1f/s) resumed=%d (%.1f%%)%n", handshakes.getTotalCount(),
+                    handshakes.getTotalCount() / (double) durationSeconds, resumed,
+                    100.0 * resumed / handshakes.getTotalCount());
+            printRow("tls", handshakes);
+        }
+    }
+
+    private static void printRow(String name, Histogram histogram) {
+        System.out.printf("%-8s %10d %10.0f %10d %10d %10d %10d %10d%n", name, histogram.getTotalCount(),
+                histogram.getMean(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Microbenchmarks of the server's hot code paths, run in-process without starting the server.
+ * Each benchmark is warmed up until the JIT has settled, then timed over several rounds of a fixed
+ * duration. Results feed a sink so the work can't be optimized away.
+ * Usage: java Microbench [name filter] [round millis]
+ */
+public class Microbench {
+
+    private interface Benchmark {
+        long run(int iterations) throws Exception;
+    }
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        long roundMillis = args.length > 1 ? Long.parseLong(args[1]) : 500;
+
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        addRequestParsing(benchmarks);
+        addContentType(benchmarks);
+        addTemplate(benchmarks);
+        addEmailStore(benchmarks);
+
+        System.out.printf("%-32s %14s %14s %14s%n", "benchmark", "ns/op", "min ns/op", "ops/s");
+        for (Map.Entry<String, Benchmark> entry : benchmarks.entrySet()) {
+            if (entry.getKey().contains(filter)) {
+                measure(entry.getKey(), entry.getValue(), roundMillis);
+            }
+        }
+    }
+
+    private static void measure(String name, Benchmark benchmark, long roundMillis) throws Exception {
+        // Find a batch size that takes about a tenth of a round, then warm up with it
+        int batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sink += benchmark.run(batch);
+            if (System.nanoTime() - start > roundMillis * 100_000L || batch >= 1 << 28) {
+                break;
+            }
+            batch *= 2;
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(benchmark, batch, roundMillis);
+        }
+
+        List<Double> results = new ArrayList<>();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            results.add(round(benchmark, batch, roundMillis));
+        }
+        double mean = results.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double min = results.stream().mapToDouble(Double::doubleValue).min().orElse(0);
+        System.out.printf("%-32s %14.1f %14.1f %14.0f%n", name, mean, min, 1e9 / mean);
+    }
+
+    // Returns ns/op over one round
+    private static double round(Benchmark benchmark, int batch, long roundMillis) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long deadline = start + roundMillis * 1_000_000L;
+        long now;
+        do {
+            sink += benchmark.run(batch);
+            operations += batch;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (double) (now - start) / operations;
+    }
+
+    private static void addRequestParsing(Map<String, Benchmark> benchmarks) {
+        byte[] get = ("GET /spongebob.jpg HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+                + "Accept: image/avif,image/webp,image/apng,image/*,*/*;q=0.8\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Accept-Language: en-US,en;q=0.9\r\n"
+                + "Referer: http://localhost:8080/index.html\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] postHead = ("POST /params_info.html HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: 57\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] postBody = "Sender=alice&Receiver=bob&Subject=hello&Message=hi+there"
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        benchmarks.put("HttpRequest.parse GET", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                HttpRequest request = new HttpRequest(get, get.length);
+                result += request.getPath().length();
+            }
+            return result;
+        });
+        benchmarks.put("HttpRequest.parse GET+headers", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                HttpRequest request = new HttpRequest(get, get.length);
+                String encoding = request.getHeader("Accept-Encoding");
+                result += request.isKeepAlive() ? encoding.length() : 0;
+            }
+            return result;
+        });
+        benchmarks.put("HttpRequest.parse POST+body", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                HttpRequest request = new HttpRequest(postHead, postHead.length);
+                request.setBody(postBody, 0, postBody.length);
+                result += request.getParameters().size();
+            }
+            return result;
+        });
+    }
+
+    private static void addContentType(Map<String, Benchmark> benchmarks) {
+        Path[] paths = {Paths.get("/www/index.html"), Paths.get("/www/spongebob.jpg"),
+                Paths.get("/www/favicon.ico"), Paths.get("/www/data.bin")};
+        benchmarks.put("determineContentType", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                result += RequestHandler.determineContentType(paths[i & 3]).length();
+            }
+            return result;
+        });
+    }
+
+    private static void addTemplate(Map<String, Benchmark> benchmarks) throws IOException {
+        Path page = Paths.get("www", "lab", "html", "param_info.html");
+        Template template = Template.parse(new String(Files.readAllBytes(page), StandardCharsets.UTF_8), 0);
+        EmailStore store = new EmailStore();
+        for (int i = 0; i < 100; i++) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("Sender", "sender" + i);
+            fields.put("Receiver", "receiver" + i);
+            fields.put("Subject", "subject " + i);
+            fields.put("Message", "message number " + i);
+            store.add(new EmailStore.Email("uuid-" + i, EmailStore.toFields(fields)));
+        }
+        Map<String, Template.Slot> slots = new HashMap<>();
+        slots.put("DynamicList", out -> out.write("<li>Sender: alice</li><li>Subject: hello</li>"));
+        slots.put("EmailList", out -> {
+            for (EmailStore.Email email : store.snapshot()) {
+                out.write("<li>uuid: ").write(email.getUuid()).write("</li>");
+                for (int i = 0; i < email.getFieldCount(); i++) {
+                    out.write("<li>").write(email.getFieldName(i)).write(": ").write(email.getFieldValue(i)).write("</li>");
+                }
+                out.write("<br>");
+            }
+        });
+        slots.put("delete", out -> out.write(""));
+        ByteArrayOutputStream html = new ByteArrayOutputStream(32 * 1024);
+
+        benchmarks.put("Template.render 100 emails", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                html.reset();
+                template.render(new Template.Output(html), slots);
+                result += html.size();
+            }
+            return result;
+        });
+    }
+
+    private static void addEmailStore(Map<String, Benchmark> benchmarks) {
+        String[] fields = {"Sender", "alice", "Receiver", "bob", "Subject", "hello", "Message", "hi"};
+        EmailStore store = new EmailStore();
+        for (int i = 0; i < 10_000; i++) {
+            store.add(new EmailStore.Email("seed-" + i, fields));
+        }
+        long[] next = {0};
+
+        benchmarks.put("EmailStore.add+delete", iterations -> {
+            for (int i = 0; i < iterations; i++) {
+                String uuid = "bench-" + next[0]++;
+                store.add(new EmailStore.Email(uuid, fields));
+                store.delete(uuid);
+            }
+            return store.size();
+        });
+        benchmarks.put("EmailStore.get", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                EmailStore.Email email = store.get("seed-" + (i % 10_000));
+                result += email == null ? 0 : 1;
+            }
+            return result;
+        });
+        benchmarks.put("EmailStore.snapshot 10k", iterations -> {
+            long result = 0;
+            for (int i = 0; i < iterations; i++) {
+                for (EmailStore.Email email : store.snapshot()) {
+                    result += email.getFieldCount();
+                }
+            }
+            return result;
+        });
+    }
+}
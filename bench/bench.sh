@@ -0,0 +1,66 @@
+#!/bin/bash
+
+# Builds the server and the benchmarks, then runs them against localhost only.
+#   bench/bench.sh micro [filter] [round millis]   in-process microbenchmarks
+#   bench/bench.sh load [LoadGenerator options]    starts a server on $PORT and drives it,
+#                                                  over HTTPS on $TLS_PORT when TLS=1
+#   bench/bench.sh all                             both, with default options
+# EXECUTOR=fixed|virtual picks the blocking engine's executor for the load run (default: config.ini's).
+
+cd "$(dirname "$0")/.." || exit 1
+OUT=bench/out
+PORT=${PORT:-8089}
+TLS_PORT=${TLS_PORT:-8449}
+
+mkdir -p $OUT/classes
+javac -d $OUT/classes *.java bench/*.java || exit 1
+
+run_micro() {
+  java -cp $OUT/classes Microbench "$@"
+}
+
+run_load() {
+  mkdir -p $OUT/server
+  TARGET=(--port "$PORT")
+  TLS_CONFIG=(-e "s|^tlsPort=.*|tlsPort=0|")
+  if [ "${TLS:-0}" = 1 ]; then
+    # A throwaway self-signed certificate, the load generator trusts whatever the server presents
+    if [ ! -f $OUT/server/keystore.p12 ]; then
+      keytool -genkeypair -alias bench -keyalg EC -groupname secp256r1 -dname CN=localhost \
+          -ext SAN=dns:localhost,ip:127.0.0.1 -validity 30 -storetype PKCS12 \
+          -keystore $OUT/server/keystore.p12 -storepass benchpass -keypass benchpass > /dev/null || exit 1
+    fi
+    TARGET=(--port "$TLS_PORT" --tls true)
+    TLS_CONFIG=(-e "s|^tlsPort=.*|tlsPort=$TLS_PORT|"
+                -e "s|^tlsKeystore=.*|tlsKeystore=keystore.p12|"
+                -e "s|^tlsKeystorePassword=.*|tlsKeystorePassword=benchpass|"
+                -e "s|^tlsKeystoreType=.*|tlsKeystoreType=PKCS12|")
+  fi
+  EXECUTOR_CONFIG=()
+  if [ -n "${EXECUTOR:-}" ]; then
+    EXECUTOR_CONFIG=(-e "s|^executor=.*|executor=$EXECUTOR|")
+  fi
+  sed -e "s|^port=.*|port=$PORT|" \
+      -e "s|^root=.*|root=$(pwd)/www/lab/html/|" \
+      -e "s|^accessLogLevel=.*|accessLogLevel=off|" \
+      -e "s|^emailDataDir=.*|emailDataDir=|" \
+      "${EXECUTOR_CONFIG[@]}" \
+      "${TLS_CONFIG[@]}" \
+      config.ini > $OUT/server/config.ini
+  (cd $OUT/server && exec java ${SERVER_OPTS} -cp ../classes Program > server.out 2>&1) &
+  SERVER=$!
+  trap 'kill $SERVER 2>/dev/null' EXIT
+
+  for _ in $(seq 50); do
+    (exec 3<>/dev/tcp/localhost/$PORT) 2>/dev/null && break
+    sleep 0.2
+  done
+  java ${LOAD_OPTS} -cp $OUT/classes LoadGenerator --host localhost "${TARGET[@]}" "$@"
+}
+
+case "${1:-all}" in
+  micro) shift; run_micro "$@" ;;
+  load) shift; run_load "$@" ;;
+  all) run_micro && run_load ;;
+  *) echo "Usage: $0 micro|load|all [options]"; exit 1 ;;
+esac